@@ -0,0 +1,135 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import org.apache.nifi.connectable.Connectable;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.groups.ProcessGroup;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Minimal stand-ins for the NiFi framework objects the instrumentation helpers touch
+ */
+final class BenchmarkNiFi {
+  static final String COMPONENT_TYPE = "UpdateAttribute";
+  static final String COMPONENT_NAME = "Update Attribute";
+
+  private static boolean installed;
+
+  private BenchmarkNiFi() {}
+
+  /**
+   * Registers a recording SDK as the global instance, must run before any helper is loaded since
+   * the helpers grab their tracer statically
+   */
+  static synchronized void installOpenTelemetry() {
+    if (installed) {
+      return;
+    }
+    OpenTelemetrySdk.builder()
+        .setTracerProvider(SdkTracerProvider.builder().build())
+        .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+        .buildAndRegisterGlobal();
+    installed = true;
+  }
+
+  static List<FlowFile> flowFiles(int count, int attributeCount) {
+    List<FlowFile> flowFiles = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      flowFiles.add(flowFile(i, attributeCount));
+    }
+    return flowFiles;
+  }
+
+  static FlowFile flowFile(long id, int attributeCount) {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(CoreAttributes.UUID.key(), UUID.randomUUID().toString());
+    attributes.put(CoreAttributes.FILENAME.key(), "file-" + id);
+    attributes.put("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+    for (int i = attributes.size(); i < attributeCount; i++) {
+      attributes.put("attribute." + i, "value-" + i + "-" + id);
+    }
+    return new ImmutableFlowFile(id, System.currentTimeMillis(), attributes);
+  }
+
+  @SuppressWarnings("unchecked")
+  static ProcessSession session() {
+    return proxy(ProcessSession.class, (proxy, method, args) -> {
+      if (method.getName().equals("putAllAttributes")) {
+        FlowFile flowFile = (FlowFile) args[0];
+        Map<String, String> attributes = new HashMap<>(flowFile.getAttributes());
+        attributes.putAll((Map<String, String>) args[1]);
+        return new ImmutableFlowFile(flowFile.getId(), flowFile.getEntryDate(), attributes);
+      }
+      return unsupported(proxy, method.getName(), args);
+    });
+  }
+
+  static Connectable connectable() {
+    ProcessGroup processGroup = proxy(ProcessGroup.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getName":
+          return "Benchmark Group";
+        case "getIdentifier":
+          return "benchmark-group-id";
+        default:
+          return unsupported(proxy, method.getName(), args);
+      }
+    });
+    return proxy(Connectable.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getName":
+          return COMPONENT_NAME;
+        case "getComponentType":
+          return COMPONENT_TYPE;
+        case "getIdentifier":
+          return "benchmark-component-id";
+        case "getProcessGroup":
+          return processGroup;
+        default:
+          return unsupported(proxy, method.getName(), args);
+      }
+    });
+  }
+
+  static ProcessContext processContext() {
+    return proxy(ProcessContext.class, (proxy, method, args) -> {
+      if (method.getName().equals("getName")) {
+        return COMPONENT_NAME;
+      }
+      return unsupported(proxy, method.getName(), args);
+    });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(
+        Proxy.newProxyInstance(BenchmarkNiFi.class.getClassLoader(), new Class<?>[] {type},
+            handler));
+  }
+
+  // identity semantics are needed since the proxies are used as VirtualField owners
+  private static Object unsupported(Object proxy, String method, Object[] args) {
+    switch (method) {
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return proxy.getClass().getName();
+      default:
+        throw new UnsupportedOperationException(method);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the ProcessSession advice helpers for one onTrigger handling a batch of FlowFiles.
+ * Scores are per batch, divide by batchSize for the per FlowFile cost.
+ *
+ * Run with {@code ./gradlew jmh}, the gc profiler reports the allocation rate next to ns/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcessSessionBenchmark {
+  private static final Relationship SUCCESS = new Relationship.Builder().name("success").build();
+
+  @Param({"10", "50", "200"})
+  public int attributeCount;
+
+  @Param({"1", "100", "10000"})
+  public int batchSize;
+
+  private ProcessSession session;
+  private List<FlowFile> flowFiles;
+  private FlowFile mergedFlowFile;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    BenchmarkNiFi.installOpenTelemetry();
+    session = BenchmarkNiFi.session();
+    flowFiles = BenchmarkNiFi.flowFiles(batchSize, attributeCount);
+    mergedFlowFile = BenchmarkNiFi.flowFile(batchSize, attributeCount);
+    ActiveConnectableSaver.set(BenchmarkNiFi.connectable(), BenchmarkNiFi.processContext());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    ProcessSpanTracker.close(session);
+    ActiveConnectableSaver.remove();
+  }
+
+  /**
+   * get(), transfer(FlowFile, Relationship) and commit for every FlowFile of the batch
+   */
+  @Benchmark
+  public void getTransferEach(Blackhole blackhole) {
+    for (FlowFile flowFile : flowFiles) {
+      ProcessSessionSingletons.startFileHandlingSpan(session, flowFile);
+      blackhole.consume(ProcessSessionSingletons.handleTransferFlowFile(flowFile, SUCCESS, session));
+    }
+    ProcessSpanTracker.close(session);
+  }
+
+  /**
+   * get(int), transfer(Collection, Relationship) and commit of the whole batch
+   */
+  @Benchmark
+  public void getTransferBatch(Blackhole blackhole) {
+    ProcessSessionSingletons.startFileHandlingSpan(session, flowFiles);
+    blackhole.consume(ProcessSessionSingletons.handleTransferFlowFiles(flowFiles, SUCCESS, session));
+    ProcessSpanTracker.close(session);
+  }
+
+  /**
+   * create(Collection) merging the batch, transfer of the merged FlowFile and commit
+   */
+  @Benchmark
+  public void mergeTransfer(Blackhole blackhole) {
+    ProcessSessionSingletons.startMergeFilesSpan(session, flowFiles, mergedFlowFile);
+    blackhole.consume(
+        ProcessSessionSingletons.handleTransferFlowFile(mergedFlowFile, SUCCESS, session));
+    ProcessSpanTracker.close(session);
+  }
+}
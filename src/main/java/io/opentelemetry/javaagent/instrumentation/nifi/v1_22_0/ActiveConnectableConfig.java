@@ -1,14 +1,48 @@
 package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
 
+import io.opentelemetry.api.trace.Span;
 import org.apache.nifi.connectable.Connectable;
 import org.apache.nifi.processor.ProcessContext;
 
+import java.util.ArrayList;
+
+/**
+ * What the current thread is working on. A single instance is kept per thread and reused, so it
+ * must not be held on to beyond the current call.
+ */
 public class ActiveConnectableConfig {
   public Connectable connectable;
   public ProcessContext processContext;
+  // resolved once per onTrigger, null when no connectable is active
+  public ConnectableProfile profile;
+  // only set for components configured with session spans
+  public long triggerStartEpochNanos;
+  public SessionSpan sessionSpan;
+  // scope free mode: the latest FlowFile span of the running onTrigger
+  public Span lastSpan;
+  // FlowFile spans whose scope was opened in the running onTrigger, in opening order
+  public ArrayList<FlowFileSpan> openScopes = new ArrayList<>();
+
+  // thread name the prefix was matched against, thread names rarely change
+  private String threadName;
+  private String threadPrefix;
 
-  public ActiveConnectableConfig(Connectable connectable, ProcessContext processContext) {
-    this.connectable = connectable;
-    this.processContext = processContext;
+  /**
+   * @return the configured external propagation thread prefix the current thread name starts
+   *     with, or null
+   */
+  public String threadPrefix() {
+    String name = Thread.currentThread().getName();
+    if (!name.equals(threadName)) {
+      threadPrefix = null;
+      for (String prefix : ProcessSessionSingletons.externalPropagationThreadPrefixes) {
+        if (name.startsWith(prefix)) {
+          threadPrefix = prefix;
+          break;
+        }
+      }
+      threadName = name;
+    }
+    return threadPrefix;
   }
 }
@@ -1,38 +1,163 @@
 package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
 
+import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.instrumentation.api.util.VirtualField;
+import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
 import org.apache.nifi.connectable.Connectable;
 import org.apache.nifi.processor.ProcessContext;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ActiveConnectableSaver {
-  private static final VirtualField<Thread, Connectable> activeConnectableMap =
-      VirtualField.find(Thread.class, Connectable.class);
-  private static final VirtualField<Thread, ProcessContext> activeProcessContextMap =
-      VirtualField.find(Thread.class, ProcessContext.class);
+  private static final VirtualField<Thread, ActiveConnectableConfig> activeConfigMap =
+      VirtualField.find(Thread.class, ActiveConnectableConfig.class);
   private static final Logger logger =
       Logger.getLogger(ActiveConnectableSaver.class.getName());
+  private static final RateLimitedLogger missingConnectableLogger =
+      new RateLimitedLogger(logger, Level.WARNING, "active connectable config is null");
+  // don't keep the list of an unusually large onTrigger around
+  private static final int MAX_RETAINED_SCOPES = 1024;
+  // epoch time of the onTrigger start, from a monotonic anchor for nanosecond precision
+  private static final long anchorEpochNanos =
+      TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+  private static final long anchorNanos = System.nanoTime();
 
   private ActiveConnectableSaver() {}
 
+  private static ActiveConnectableConfig getOrCreate() {
+    Thread thread = Thread.currentThread();
+    ActiveConnectableConfig config = activeConfigMap.get(thread);
+    if (config == null) {
+      config = new ActiveConnectableConfig();
+      activeConfigMap.set(thread, config);
+    }
+    return config;
+  }
+
   public static void set(Connectable connectable, ProcessContext processContext) {
-    activeConnectableMap.set(Thread.currentThread(), connectable);
-    activeProcessContextMap.set(Thread.currentThread(), processContext);
+    ActiveConnectableConfig config = getOrCreate();
+    config.connectable = connectable;
+    config.processContext = processContext;
+    config.profile = ConnectableProfile.get(connectable);
+    if (config.profile.sessionSpan) {
+      config.triggerStartEpochNanos = anchorEpochNanos + (System.nanoTime() - anchorNanos);
+    }
   }
 
+  /**
+   * @return the reused config of the current thread, its fields are null outside of onTrigger
+   */
   public static ActiveConnectableConfig get() {
-    Connectable connectable = activeConnectableMap.get(Thread.currentThread());
-    ProcessContext processContext = activeProcessContextMap.get(Thread.currentThread());
-    if (connectable == null || processContext == null) {
-      logger.warning("active connectable config is null");
+    ActiveConnectableConfig config = getOrCreate();
+    if (config.connectable == null || config.processContext == null) {
+      missingConnectableLogger.log();
+    }
+    return config;
+  }
+
+  /**
+   * @return the profile of the component running on the current thread, or null
+   */
+  public static ConnectableProfile profile() {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    return config == null ? null : config.profile;
+  }
+
+  /**
+   * true if the component running on the current thread is excluded from instrumentation, in which
+   * case FlowFiles pass through with their incoming context untouched
+   */
+  public static boolean isDisabled() {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    return config != null && config.profile != null && !config.profile.enabled;
+  }
+
+  /**
+   * Remembers the FlowFile span started last in the running onTrigger, until the next FlowFile or
+   * the end of the onTrigger. No context is made current for it, the onTrigger keeps the context
+   * it started with and the span is resolved through {@link #currentSpan()}
+   */
+  public static void activate(Span span) {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    if (config != null && config.connectable != null) {
+      config.lastSpan = span;
+    }
+  }
+
+  /**
+   * true while the current thread runs an onTrigger, the only place a FlowFile scope can be opened
+   * and reliably closed
+   */
+  public static boolean inTrigger() {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    return config != null && config.connectable != null;
+  }
+
+  /**
+   * Remembers a FlowFile scope opened in the running onTrigger, it is closed once its span ended
+   * and no newer scope is open, or when the onTrigger returns
+   */
+  static void scopeOpened(FlowFileSpan entry) {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    if (config != null && config.connectable != null) {
+      entry.scopeContext = Java8BytecodeBridge.currentContext();
+      config.openScopes.add(entry);
+    }
+  }
+
+  /**
+   * Closes the newest FlowFile scopes of the running onTrigger as long as their span has ended, so
+   * only scopes of live spans stay open below the next one
+   */
+  static void closeEndedScopes() {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    if (config == null) {
+      return;
+    }
+    for (int i = config.openScopes.size() - 1; i >= 0; i--) {
+      FlowFileSpan entry = config.openScopes.get(i);
+      if (!entry.isEnded() || !entry.closeScope()) {
+        return;
+      }
+      config.openScopes.remove(i);
+    }
+  }
+
+  /**
+   * @return the span the current thread is working on, the latest FlowFile span in scope free mode
+   */
+  public static Span currentSpan() {
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    if (config != null && config.lastSpan != null) {
+      return config.lastSpan;
     }
-    return new ActiveConnectableConfig(connectable, processContext);
+    return Java8BytecodeBridge.currentSpan();
   }
 
   public static void remove() {
-    activeConnectableMap.set(Thread.currentThread(), null);
-    activeProcessContextMap.set(Thread.currentThread(), null);
+    ActiveConnectableConfig config = activeConfigMap.get(Thread.currentThread());
+    if (config != null) {
+      // newest first, so every scope restores the context the previous one made current. Scopes
+      // that could not be closed are dropped with the list, there is nothing left to restore
+      for (int i = config.openScopes.size() - 1; i >= 0; i--) {
+        config.openScopes.get(i).closeScope();
+      }
+      if (config.openScopes.size() > MAX_RETAINED_SCOPES) {
+        config.openScopes = new ArrayList<>();
+      } else {
+        config.openScopes.clear();
+      }
+      config.connectable = null;
+      config.processContext = null;
+      config.profile = null;
+      config.lastSpan = null;
+      if (config.sessionSpan != null) {
+        config.sessionSpan.end();
+        config.sessionSpan = null;
+      }
+    }
   }
 }
@@ -0,0 +1,263 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Moves FlowFile attribute capture and span ending off the processor threads.
+ *
+ * When enabled, processor threads only publish references to the span, the FlowFile attribute map
+ * and the relationship, or the end timestamp, into a bounded lock-free ring buffer. A single daemon
+ * worker applies them in order, so a span is always enriched before it is ended. FlowFile attribute
+ * maps are immutable, a modified FlowFile gets a new map, so publishing the reference is enough.
+ * When the buffer is full a capture is done on the calling thread instead, while an end waits a
+ * bounded time for a free slot so it is still applied after the captures of its span already
+ * queued. If the worker does not catch up in time the span is ended on the calling thread, and
+ * captures of the span still queued are lost.
+ */
+public final class AsyncEnrichment {
+  private static final Logger logger = Logger.getLogger(AsyncEnrichment.class.getName());
+
+  static final boolean enabled = InstrumentationConfig.get().getBoolean(
+      "otel.instrumentation.nifi.async-enrichment.enabled",
+      false
+  );
+  private static final int bufferSize = InstrumentationConfig.get().getInt(
+      "otel.instrumentation.nifi.async-enrichment.buffer-size",
+      8192
+  );
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+  private static final long MAX_END_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  // epoch time of the span end is taken on the processor thread, from a monotonic anchor
+  private static final long anchorEpochNanos =
+      TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+  private static final long anchorNanos = System.nanoTime();
+
+  private static final LongCounter overflowCounter = GlobalOpenTelemetry.getMeter("nifi")
+      .counterBuilder("nifi.enrichment.overflow")
+      .setDescription("Span enrichments done or waited for on the processor thread because the "
+          + "buffer was full")
+      .setUnit("{task}")
+      .build();
+
+  private static final AsyncEnrichment instance = enabled ? start(bufferSize) : null;
+
+  private final RingBuffer buffer;
+  private final long maxEndWaitNanos;
+  private final Thread worker;
+
+  AsyncEnrichment(int bufferSize, long maxEndWaitNanos) {
+    buffer = new RingBuffer(bufferSize);
+    this.maxEndWaitNanos = maxEndWaitNanos;
+    worker = new Thread(this::drain, "otel-nifi-enrichment");
+    worker.setDaemon(true);
+  }
+
+  private static AsyncEnrichment start(int bufferSize) {
+    AsyncEnrichment enrichment = new AsyncEnrichment(bufferSize, MAX_END_WAIT_NANOS);
+    enrichment.start();
+    return enrichment;
+  }
+
+  void start() {
+    worker.start();
+  }
+
+  /**
+   * Records the FlowFile attributes, or only their changes if the initial attributes are given,
+   * and the transfer relationship on a recording span
+   */
+  public static void capture(
+      Span span,
+      @Nullable Map<String, String> initialAttributes,
+      Map<String, String> attributes,
+      String relationship
+  ) {
+    if (instance != null) {
+      instance.enqueueCapture(span, initialAttributes, attributes, relationship);
+    } else {
+      applyCapture(span, initialAttributes, attributes, relationship);
+    }
+  }
+
+  /**
+   * Ends the span now, the end itself may be applied later by the worker
+   */
+  public static void end(Span span) {
+    if (instance != null) {
+      instance.enqueueEnd(span);
+    } else {
+      span.end();
+    }
+  }
+
+  void enqueueCapture(
+      Span span,
+      @Nullable Map<String, String> initialAttributes,
+      Map<String, String> attributes,
+      String relationship
+  ) {
+    if (!buffer.offer(span, initialAttributes, attributes, relationship, 0)) {
+      overflowCounter.add(1);
+      applyCapture(span, initialAttributes, attributes, relationship);
+    }
+  }
+
+  void enqueueEnd(Span span) {
+    long endEpochNanos = anchorEpochNanos + (System.nanoTime() - anchorNanos);
+    if (buffer.offer(span, null, null, null, endEpochNanos)) {
+      return;
+    }
+    overflowCounter.add(1);
+    // a capture of the span may still be queued, ending it here would drop its attributes
+    long deadline = System.nanoTime() + maxEndWaitNanos;
+    while (!buffer.offer(span, null, null, null, endEpochNanos)) {
+      if (System.nanoTime() - deadline >= 0) {
+        // don't hold the processor thread on a worker that fell behind or died
+        span.end(endEpochNanos, TimeUnit.NANOSECONDS);
+        return;
+      }
+      LockSupport.parkNanos(FULL_PARK_NANOS);
+    }
+  }
+
+  private static void applyCapture(
+      Span span,
+      @Nullable Map<String, String> initialAttributes,
+      Map<String, String> attributes,
+      String relationship
+  ) {
+    AttributeCapturePolicy policy = ProcessSessionSingletons.attributeCapturePolicy;
+    if (initialAttributes != null) {
+      policy.captureChanges(span, initialAttributes, attributes);
+    } else {
+      policy.capture(span, attributes);
+    }
+    span.setAttribute("nifi.relationship.target", relationship);
+  }
+
+  private void drain() {
+    RingBuffer.Cell cell = new RingBuffer.Cell();
+    while (true) {
+      if (!buffer.poll(cell)) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+        continue;
+      }
+      try {
+        if (cell.endEpochNanos != 0) {
+          cell.span.end(cell.endEpochNanos, TimeUnit.NANOSECONDS);
+        } else {
+          applyCapture(cell.span, cell.initialAttributes, cell.attributes, cell.relationship);
+        }
+      } catch (Throwable t) {
+        // the worker must outlive any task, nothing would drain the buffer otherwise
+        logger.warning("failed enriching span: " + t);
+      } finally {
+        cell.clear();
+      }
+    }
+  }
+
+  /**
+   * Bounded multi producer, multi consumer queue of preallocated cells (Vyukov). Every cell carries
+   * a sequence telling whether it is free for the producer or published for the consumer of a given
+   * position, so neither side takes a lock and nothing is allocated per task.
+   */
+  static final class RingBuffer {
+    private final Cell[] cells;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    RingBuffer(int requestedCapacity) {
+      int capacity = Integer.highestOneBit(Math.max(requestedCapacity, 2) - 1) << 1;
+      cells = new Cell[capacity];
+      for (int i = 0; i < capacity; i++) {
+        cells[i] = new Cell();
+        cells[i].sequence = i;
+      }
+      mask = capacity - 1;
+    }
+
+    boolean offer(
+        Span span,
+        Map<String, String> initialAttributes,
+        Map<String, String> attributes,
+        String relationship,
+        long endNanos
+    ) {
+      while (true) {
+        long position = enqueuePosition.get();
+        Cell cell = cells[(int) position & mask];
+        long difference = cell.sequence - position;
+        if (difference < 0) {
+          return false;
+        }
+        if (difference == 0 && enqueuePosition.compareAndSet(position, position + 1)) {
+          cell.span = span;
+          cell.initialAttributes = initialAttributes;
+          cell.attributes = attributes;
+          cell.relationship = relationship;
+          cell.endEpochNanos = endNanos;
+          // publishes the fields above to the consumer
+          cell.sequence = position + 1;
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Copies the next task into the given cell and frees its slot
+     */
+    boolean poll(Cell target) {
+      while (true) {
+        long position = dequeuePosition.get();
+        Cell cell = cells[(int) position & mask];
+        long difference = cell.sequence - (position + 1);
+        if (difference < 0) {
+          return false;
+        }
+        if (difference == 0 && dequeuePosition.compareAndSet(position, position + 1)) {
+          target.span = cell.span;
+          target.initialAttributes = cell.initialAttributes;
+          target.attributes = cell.attributes;
+          target.relationship = cell.relationship;
+          target.endEpochNanos = cell.endEpochNanos;
+          cell.clear();
+          cell.sequence = position + cells.length;
+          return true;
+        }
+      }
+    }
+
+    static final class Cell {
+      volatile long sequence;
+      Span span;
+      Map<String, String> initialAttributes;
+      Map<String, String> attributes;
+      String relationship;
+      // non zero for end tasks
+      long endEpochNanos;
+
+      void clear() {
+        span = null;
+        initialAttributes = null;
+        attributes = null;
+        relationship = null;
+        endEpochNanos = 0;
+      }
+    }
+  }
+}
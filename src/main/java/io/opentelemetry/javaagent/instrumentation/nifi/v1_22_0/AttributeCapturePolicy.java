@@ -0,0 +1,177 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which FlowFile attributes are recorded on a span, and how.
+ *
+ * The include / exclude patterns are compiled once, and the decision for every attribute name is
+ * cached together with its prefixed {@link AttributeKey}, so recording a known attribute costs a
+ * single map lookup.
+ */
+public final class AttributeCapturePolicy {
+  static final String ATTRIBUTE_PREFIX = "nifi.attributes.";
+
+  // marks attribute names that are not captured, ConcurrentHashMap does not allow null values
+  private static final AttributeKey<String> EXCLUDED = AttributeKey.stringKey(ATTRIBUTE_PREFIX);
+  private static final AttributeKey<List<String>> REMOVED =
+      AttributeKey.stringArrayKey("nifi.removed_attributes");
+
+  @Nullable
+  private final Pattern include;
+  @Nullable
+  private final Pattern exclude;
+  private final int maxCount;
+  private final int maxValueLength;
+  private final int maxCachedKeys;
+  // record only the attributes changed since the FlowFile was read or created
+  final boolean diff;
+  private final ConcurrentHashMap<String, AttributeKey<String>> keys = new ConcurrentHashMap<>();
+
+  AttributeCapturePolicy(
+      List<String> include,
+      List<String> exclude,
+      int maxCount,
+      int maxValueLength,
+      int maxCachedKeys,
+      boolean diff
+  ) {
+    this.include = compile(include);
+    this.exclude = compile(exclude);
+    this.maxCount = maxCount < 0 ? Integer.MAX_VALUE : maxCount;
+    this.maxValueLength = maxValueLength < 0 ? Integer.MAX_VALUE : maxValueLength;
+    this.maxCachedKeys = maxCachedKeys;
+    this.diff = diff;
+  }
+
+  public static AttributeCapturePolicy create(InstrumentationConfig config) {
+    return new AttributeCapturePolicy(
+        config.getList(
+            "otel.instrumentation.nifi.capture-attributes.include", Collections.emptyList()),
+        config.getList(
+            "otel.instrumentation.nifi.capture-attributes.exclude", Collections.emptyList()),
+        config.getInt("otel.instrumentation.nifi.capture-attributes.max-count", -1),
+        config.getInt("otel.instrumentation.nifi.capture-attributes.max-value-length", -1),
+        config.getInt("otel.instrumentation.nifi.capture-attributes.key-cache-size", 4096),
+        config.getBoolean("otel.instrumentation.nifi.capture-attributes.diff", false)
+    );
+  }
+
+  /**
+   * joins all patterns to a single alternation, null matches everything
+   */
+  @Nullable
+  private static Pattern compile(List<String> patterns) {
+    if (patterns.isEmpty()) {
+      return null;
+    }
+    StringBuilder regex = new StringBuilder();
+    for (String pattern : patterns) {
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      regex.append("(?:").append(pattern).append(')');
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  /**
+   * Records the captured attributes on the span, up to the configured max count
+   */
+  public void capture(Span span, Map<String, String> attributes) {
+    if (maxCount == 0) {
+      return;
+    }
+    int captured = 0;
+    for (Map.Entry<String, String> entry : attributes.entrySet()) {
+      AttributeKey<String> key = keyFor(entry.getKey());
+      if (key == null) {
+        continue;
+      }
+      span.setAttribute(key, truncate(entry.getValue()));
+      if (++captured >= maxCount) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Records only the captured attributes added or modified since {@code before}, up to the
+   * configured max count, and the names of the removed ones as nifi.removed_attributes
+   */
+  public void captureChanges(Span span, Map<String, String> before, Map<String, String> after) {
+    // an untouched FlowFile keeps the very same attribute map
+    if (maxCount == 0 || before == after) {
+      return;
+    }
+    int captured = 0;
+    for (Map.Entry<String, String> entry : after.entrySet()) {
+      String value = entry.getValue();
+      String previous = before.get(entry.getKey());
+      if (previous == value || (previous != null && previous.equals(value))) {
+        continue;
+      }
+      AttributeKey<String> key = keyFor(entry.getKey());
+      if (key == null) {
+        continue;
+      }
+      span.setAttribute(key, truncate(value));
+      if (++captured >= maxCount) {
+        break;
+      }
+    }
+    List<String> removed = null;
+    for (String name : before.keySet()) {
+      if (!after.containsKey(name) && keyFor(name) != null) {
+        if (removed == null) {
+          removed = new ArrayList<>();
+        }
+        removed.add(name);
+      }
+    }
+    if (removed != null) {
+      span.setAttribute(REMOVED, removed);
+    }
+  }
+
+  /**
+   * @return the span attribute key for the FlowFile attribute, or null if it is not captured
+   */
+  @Nullable
+  public AttributeKey<String> keyFor(String attributeName) {
+    AttributeKey<String> key = keys.get(attributeName);
+    if (key == null) {
+      key = resolve(attributeName);
+      // once full, names are resolved on every call rather than growing without bound
+      if (keys.size() < maxCachedKeys) {
+        keys.putIfAbsent(attributeName, key);
+      }
+    }
+    return key == EXCLUDED ? null : key;
+  }
+
+  private AttributeKey<String> resolve(String attributeName) {
+    if ((include != null && !include.matcher(attributeName).matches())
+        || (exclude != null && exclude.matcher(attributeName).matches())) {
+      return EXCLUDED;
+    }
+    return AttributeKey.stringKey(ATTRIBUTE_PREFIX + attributeName);
+  }
+
+  String truncate(String value) {
+    if (value == null || value.length() <= maxValueLength) {
+      return value;
+    }
+    return value.substring(0, maxValueLength);
+  }
+}
@@ -0,0 +1,91 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.SpanContext;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A single short FlowFile attribute carrying trace id, span id and trace flags, as an alternative
+ * to the W3C traceparent attribute.
+ *
+ * The value is the url safe, unpadded base64 of the 16 trace id bytes, the 8 span id bytes and the
+ * flags byte: 34 characters instead of the 55 of a traceparent.
+ */
+public final class CompactTraceContext {
+  public static final String ATTRIBUTE = "otel.tc";
+
+  private static final int TRACE_ID_BYTES = 16;
+  private static final int SPAN_ID_BYTES = 8;
+  private static final int ENCODED_BYTES = TRACE_ID_BYTES + SPAN_ID_BYTES + 1;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+  private CompactTraceContext() {}
+
+  public static String encode(SpanContext spanContext) {
+    byte[] bytes = new byte[ENCODED_BYTES];
+    hexToBytes(spanContext.getTraceId(), bytes, 0, TRACE_ID_BYTES);
+    hexToBytes(spanContext.getSpanId(), bytes, TRACE_ID_BYTES, SPAN_ID_BYTES);
+    bytes[ENCODED_BYTES - 1] = spanContext.getTraceFlags().asByte();
+    return new String(encoder.encode(bytes), StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @return the W3C traceparent equivalent of the compact value, or null if it is not valid or
+   * carries an all zero trace or span id
+   */
+  @Nullable
+  public static String toTraceparent(String compact) {
+    byte[] bytes;
+    try {
+      bytes = decoder.decode(compact);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (bytes.length != ENCODED_BYTES
+        || isZero(bytes, 0, TRACE_ID_BYTES)
+        || isZero(bytes, TRACE_ID_BYTES, SPAN_ID_BYTES)) {
+      return null;
+    }
+    // 00-<trace id>-<span id>-<flags>
+    char[] traceparent = new char[3 + TRACE_ID_BYTES * 2 + 1 + SPAN_ID_BYTES * 2 + 3];
+    int index = 0;
+    traceparent[index++] = '0';
+    traceparent[index++] = '0';
+    traceparent[index++] = '-';
+    index = bytesToHex(bytes, 0, TRACE_ID_BYTES, traceparent, index);
+    traceparent[index++] = '-';
+    index = bytesToHex(bytes, TRACE_ID_BYTES, SPAN_ID_BYTES, traceparent, index);
+    traceparent[index++] = '-';
+    bytesToHex(bytes, ENCODED_BYTES - 1, 1, traceparent, index);
+    return new String(traceparent);
+  }
+
+  private static boolean isZero(byte[] bytes, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (bytes[i] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void hexToBytes(String hex, byte[] target, int offset, int length) {
+    for (int i = 0; i < length; i++) {
+      target[offset + i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+          | Character.digit(hex.charAt(i * 2 + 1), 16));
+    }
+  }
+
+  private static int bytesToHex(byte[] bytes, int offset, int length, char[] target, int index) {
+    for (int i = offset; i < offset + length; i++) {
+      target[index++] = HEX[(bytes[i] >> 4) & 0xF];
+      target[index++] = HEX[bytes[i] & 0xF];
+    }
+    return index;
+  }
+}
@@ -0,0 +1,141 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.instrumentation.api.util.VirtualField;
+import org.apache.nifi.connectable.Connectable;
+import org.apache.nifi.groups.ProcessGroup;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Span metadata and configuration of a Connectable, computed once and cached on the Connectable
+ * itself.
+ * A profile is rebuilt when the component or its process group is renamed, or when the component
+ * is moved to another process group.
+ */
+public final class ConnectableProfile {
+  static final AttributeKey<String> COMPONENT_NAME = AttributeKey.stringKey("nifi.component.name");
+  static final AttributeKey<String> COMPONENT_TYPE = AttributeKey.stringKey("nifi.component.type");
+  static final AttributeKey<String> COMPONENT_ID = AttributeKey.stringKey("nifi.component.id");
+  static final AttributeKey<String> PROCESS_GROUP_NAME =
+      AttributeKey.stringKey("nifi.processgroup.name");
+  static final AttributeKey<String> PROCESS_GROUP_ID =
+      AttributeKey.stringKey("nifi.processgroup.id");
+  static final AttributeKey<String> RELATIONSHIP = AttributeKey.stringKey("nifi.relationship");
+
+  private static final VirtualField<Connectable, ConnectableProfile> profileField =
+      VirtualField.find(Connectable.class, ConnectableProfile.class);
+
+  // false for components excluded from instrumentation
+  public final boolean enabled;
+  public final String spanName;
+  public final Attributes attributes;
+  // metric attributes, span attributes minus the process group name which isn't unique
+  public final Attributes metricAttributes;
+  public final FlowFileSampler sampler;
+  public final boolean externalPropagation;
+  public final boolean useLinks;
+  public final boolean batchSpan;
+  public final boolean sessionSpan;
+  public final boolean fanOut;
+  // whether FlowFiles transferred to this component need the W3C attributes
+  public final boolean w3cGateway;
+
+  // the values this profile was built from, compared on every lookup
+  private final String name;
+  private final ProcessGroup processGroup;
+  private final String processGroupName;
+
+  private final ConcurrentHashMap<String, Attributes> relationshipAttributes =
+      new ConcurrentHashMap<>();
+
+  private ConnectableProfile(
+      Connectable connectable,
+      String name,
+      ProcessGroup processGroup,
+      String processGroupName
+  ) {
+    this.name = name;
+    this.processGroup = processGroup;
+    this.processGroupName = processGroupName;
+    String componentType = connectable.getComponentType();
+    this.enabled = isEnabled(
+        componentType,
+        connectable.getIdentifier(),
+        processGroup == null ? null : processGroup.getIdentifier()
+    );
+    this.spanName = componentType + ":" + name;
+    this.attributes = Attributes.builder()
+        .put(COMPONENT_NAME, name)
+        .put(COMPONENT_TYPE, componentType)
+        .put(PROCESS_GROUP_NAME, processGroupName)
+        .put(COMPONENT_ID, connectable.getIdentifier())
+        .build();
+    this.metricAttributes = Attributes.builder()
+        .put(COMPONENT_NAME, name)
+        .put(COMPONENT_TYPE, componentType)
+        .put(COMPONENT_ID, connectable.getIdentifier())
+        .put(PROCESS_GROUP_ID, processGroup == null ? null : processGroup.getIdentifier())
+        .build();
+    this.sampler = FlowFileSampler.forComponent(componentType, connectable.getIdentifier());
+    this.externalPropagation =
+        ProcessSessionSingletons.externalPropagationProcessors.contains(componentType);
+    this.useLinks = ProcessSessionSingletons.useLinksProcessors.contains(componentType);
+    this.batchSpan = ProcessSessionSingletons.batchSpanProcessors.contains(componentType);
+    this.sessionSpan = ProcessSessionSingletons.sessionSpanProcessors.contains(componentType);
+    this.fanOut = ProcessSessionSingletons.fanOutProcessors.contains(componentType);
+    this.w3cGateway = ProcessSessionSingletons.w3cGatewayProcessors.contains(componentType);
+  }
+
+  public static ConnectableProfile get(Connectable connectable) {
+    String name = connectable.getName();
+    ProcessGroup processGroup = connectable.getProcessGroup();
+    String processGroupName = processGroup == null ? null : processGroup.getName();
+    ConnectableProfile profile = profileField.get(connectable);
+    if (profile == null || !profile.isBuiltFrom(name, processGroup, processGroupName)) {
+      profile = new ConnectableProfile(connectable, name, processGroup, processGroupName);
+      profileField.set(connectable, profile);
+    }
+    return profile;
+  }
+
+  /**
+   * the metric attributes together with the relationship, built once per relationship
+   */
+  public Attributes relationshipAttributes(String relationship) {
+    Attributes attributes = relationshipAttributes.get(relationship);
+    if (attributes == null) {
+      attributes = metricAttributes.toBuilder().put(RELATIONSHIP, relationship).build();
+      relationshipAttributes.put(relationship, attributes);
+    }
+    return attributes;
+  }
+
+  /**
+   * Components are enabled if their type, id or process group id is included, or if nothing is
+   * included, and none of them is excluded
+   */
+  private static boolean isEnabled(String componentType, String componentId, String groupId) {
+    Set<String> include = ProcessSessionSingletons.includedComponents;
+    Set<String> exclude = ProcessSessionSingletons.excludedComponents;
+    if (!include.isEmpty() && !include.contains(componentType) && !include.contains(componentId)
+        && (groupId == null || !include.contains(groupId))) {
+      return false;
+    }
+    return !exclude.contains(componentType) && !exclude.contains(componentId)
+        && (groupId == null || !exclude.contains(groupId));
+  }
+
+  private boolean isBuiltFrom(String name, ProcessGroup processGroup, String processGroupName) {
+    return processGroup == this.processGroup
+        && equals(name, this.name)
+        && equals(processGroupName, this.processGroupName);
+  }
+
+  // names are usually the very same instance, so this rarely gets to String.equals
+  private static boolean equals(String a, String b) {
+    return a == b || (a != null && a.equals(b));
+  }
+}
@@ -1,12 +1,21 @@
 package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
 
-import io.opentelemetry.api.GlobalOpenTelemetry;
-import io.opentelemetry.context.Context;
-import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.nifi.processor.ProcessSession;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class ConsumerLeaseSingletons {
+  static final int maxRecordLinks = InstrumentationConfig.get().getInt(
+      "otel.instrumentation.nifi.kafka.max-record-links",
+      128
+  );
+
   private ConsumerLeaseSingletons() {}
 
   public static void setContext(
@@ -14,16 +23,47 @@ public final class ConsumerLeaseSingletons {
       ConsumerRecord<byte[], byte[]> record
   ) {
     if (record != null) {
-      Context extractedContext = GlobalOpenTelemetry.getPropagators()
-          .getTextMapPropagator()
-          .extract(
-              // using root context because we want only the extracted context if exists
-              Java8BytecodeBridge.rootContext(),
-              record.headers(),
-              KafkaHeadersGetter.INSTANCE
-          );
-      ExternalContextTracker.set(session, extractedContext);
+      ExternalContextTracker.set(session, KafkaContextExtractor.extract(record.headers()));
     }
   }
 
+  /**
+   * Drops a record context not consumed by a FlowFile, so it cannot be attached to a later one
+   */
+  public static void clearContext(ProcessSession session) {
+    ExternalContextTracker.pop(session);
+  }
+
+  /**
+   * Collects the contexts of records written together into bundled FlowFiles (demarcator or record
+   * writer). Every FlowFile created while they are written is linked to them, and so are the
+   * bundles of the partition still open from earlier polls
+   */
+  public static void startBundle(
+      ProcessSession session,
+      List<ConsumerRecord<byte[], byte[]>> records,
+      TopicPartition partition
+  ) {
+    if (records == null || records.isEmpty()) {
+      return;
+    }
+    List<SpanContext> contexts = new ArrayList<>(records.size());
+    for (ConsumerRecord<byte[], byte[]> record : records) {
+      contexts.add(
+          Span.fromContext(KafkaContextExtractor.extract(record.headers())).getSpanContext());
+    }
+    RecordBundles bundles = ExternalContextTracker.getRecordBundles(session);
+    if (bundles == null) {
+      bundles = new RecordBundles(maxRecordLinks);
+      ExternalContextTracker.setRecordBundles(session, bundles);
+    }
+    bundles.startWrite(partition, contexts);
+  }
+
+  public static void endBundle(ProcessSession session) {
+    RecordBundles bundles = ExternalContextTracker.getRecordBundles(session);
+    if (bundles != null) {
+      bundles.endWrite();
+    }
+  }
 }
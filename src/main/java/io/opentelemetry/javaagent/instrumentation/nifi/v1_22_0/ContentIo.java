@@ -0,0 +1,367 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.io.StreamCallback;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes and time spent in the content repository by ProcessSession read, write, import, export
+ * and merge calls.
+ *
+ * Bytes read are counted on the streams handed to the processor, so only what the processor
+ * actually consumed is recorded. Bytes written are taken from the size of the resulting FlowFile.
+ * The time is spent inside the read, skip and write calls of those streams, not the processor work
+ * between them; import, export and merge have no callback and are timed as a whole. Totals are
+ * accumulated on the tracked FlowFile entry and recorded per component as histograms.
+ */
+public final class ContentIo {
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final LongHistogram readSize = meter.histogramBuilder("nifi.content.read.size")
+      .setDescription("Bytes of FlowFile content read by a component in a single call")
+      .setUnit("By")
+      .ofLongs()
+      .build();
+  private static final LongHistogram writeSize = meter.histogramBuilder("nifi.content.write.size")
+      .setDescription("Bytes of FlowFile content written by a component in a single call")
+      .setUnit("By")
+      .ofLongs()
+      .build();
+  private static final DoubleHistogram readDuration =
+      meter.histogramBuilder("nifi.content.read.duration")
+          .setDescription("Time spent reading FlowFile content from the content repository")
+          .setUnit("s")
+          .build();
+  private static final DoubleHistogram writeDuration =
+      meter.histogramBuilder("nifi.content.write.duration")
+          .setDescription("Time spent writing FlowFile content to the content repository")
+          .setUnit("s")
+          .build();
+
+  private ContentIo() {}
+
+  public static void recordRead(
+      ProcessSession session,
+      FlowFile flowFile,
+      long bytes,
+      long nanos
+  ) {
+    FlowFileSpan entry = flowFile == null ? null : ProcessSpanTracker.get(session, flowFile);
+    if (entry != null) {
+      entry.addContentRead(bytes, nanos);
+    }
+    ConnectableProfile profile = ActiveConnectableSaver.profile();
+    if (ProcessorMetrics.enabled && profile != null) {
+      readSize.record(bytes, profile.metricAttributes);
+      readDuration.record(nanos / NANOS_PER_SECOND, profile.metricAttributes);
+    }
+  }
+
+  public static void recordWrite(
+      ProcessSession session,
+      FlowFile flowFile,
+      long bytes,
+      long nanos
+  ) {
+    FlowFileSpan entry = flowFile == null ? null : ProcessSpanTracker.get(session, flowFile);
+    if (entry != null) {
+      entry.addContentWritten(bytes, nanos);
+    }
+    ConnectableProfile profile = ActiveConnectableSaver.profile();
+    if (ProcessorMetrics.enabled && profile != null) {
+      writeSize.record(bytes, profile.metricAttributes);
+      writeDuration.record(nanos / NANOS_PER_SECOND, profile.metricAttributes);
+    }
+  }
+
+  /**
+   * Records a write(FlowFile, StreamCallback) as both a read and a write
+   */
+  public static void recordRewrite(
+      ProcessSession session,
+      FlowFile flowFile,
+      CountingCallback callback,
+      long bytesWritten
+  ) {
+    FlowFileSpan entry = ProcessSpanTracker.get(session, flowFile);
+    if (entry != null) {
+      entry.addContentRead(callback.count(), callback.readNanos());
+      entry.addContentWritten(bytesWritten, callback.writeNanos());
+    }
+    ConnectableProfile profile = ActiveConnectableSaver.profile();
+    if (ProcessorMetrics.enabled && profile != null) {
+      readSize.record(callback.count(), profile.metricAttributes);
+      readDuration.record(callback.readNanos() / NANOS_PER_SECOND, profile.metricAttributes);
+      writeSize.record(bytesWritten, profile.metricAttributes);
+      writeDuration.record(callback.writeNanos() / NANOS_PER_SECOND, profile.metricAttributes);
+    }
+  }
+
+  /**
+   * Wraps the returned stream of read(FlowFile), recording when the processor closes it
+   */
+  public static InputStream countReads(
+      ProcessSession session,
+      FlowFile flowFile,
+      InputStream stream
+  ) {
+    return stream == null ? null : new RecordingInputStream(stream, session, flowFile);
+  }
+
+  /**
+   * Wraps the returned stream of write(FlowFile), recording when the processor closes it
+   */
+  public static OutputStream countWrites(
+      ProcessSession session,
+      FlowFile flowFile,
+      OutputStream stream
+  ) {
+    return stream == null ? null : new RecordingOutputStream(stream, session, flowFile);
+  }
+
+  /**
+   * Counts the bytes a read or stream callback consumes from the content it is given, and times the
+   * stream calls of a read, stream or output callback
+   */
+  public static final class CountingCallback
+      implements InputStreamCallback, StreamCallback, OutputStreamCallback {
+    private final InputStreamCallback inputCallback;
+    private final StreamCallback streamCallback;
+    private final OutputStreamCallback outputCallback;
+    private long count;
+    private long readNanos;
+    private long writeNanos;
+
+    private CountingCallback(
+        InputStreamCallback inputCallback,
+        StreamCallback streamCallback,
+        OutputStreamCallback outputCallback
+    ) {
+      this.inputCallback = inputCallback;
+      this.streamCallback = streamCallback;
+      this.outputCallback = outputCallback;
+    }
+
+    public static CountingCallback wrap(InputStreamCallback callback) {
+      return new CountingCallback(callback, null, null);
+    }
+
+    public static CountingCallback wrap(StreamCallback callback) {
+      return new CountingCallback(null, callback, null);
+    }
+
+    public static CountingCallback wrap(OutputStreamCallback callback) {
+      return new CountingCallback(null, null, callback);
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public long readNanos() {
+      return readNanos;
+    }
+
+    public long writeNanos() {
+      return writeNanos;
+    }
+
+    @Override
+    public void process(InputStream in) throws IOException {
+      CountingInputStream counting = new CountingInputStream(in);
+      try {
+        inputCallback.process(counting);
+      } finally {
+        count += counting.count;
+        readNanos += counting.nanos;
+      }
+    }
+
+    @Override
+    public void process(InputStream in, OutputStream out) throws IOException {
+      CountingInputStream counting = new CountingInputStream(in);
+      TimedOutputStream timed = new TimedOutputStream(out);
+      try {
+        streamCallback.process(counting, timed);
+      } finally {
+        count += counting.count;
+        readNanos += counting.nanos;
+        writeNanos += timed.nanos;
+      }
+    }
+
+    @Override
+    public void process(OutputStream out) throws IOException {
+      TimedOutputStream timed = new TimedOutputStream(out);
+      try {
+        outputCallback.process(timed);
+      } finally {
+        writeNanos += timed.nanos;
+      }
+    }
+  }
+
+  static class CountingInputStream extends FilterInputStream {
+    long count;
+    // spent in the calls of the wrapped stream
+    long nanos;
+    private long mark;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int value;
+      try {
+        value = in.read();
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+      if (value >= 0) {
+        count++;
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int read;
+      try {
+        read = in.read(b, off, len);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long start = System.nanoTime();
+      long skipped;
+      try {
+        skipped = in.skip(n);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+      if (skipped > 0) {
+        count += skipped;
+      }
+      return skipped;
+    }
+
+    // re-read bytes are not counted twice
+    @Override
+    public synchronized void mark(int readlimit) {
+      in.mark(readlimit);
+      mark = count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      in.reset();
+      count = mark;
+    }
+  }
+
+  private static final class RecordingInputStream extends CountingInputStream {
+    private final ProcessSession session;
+    private final FlowFile flowFile;
+    private boolean closed;
+
+    RecordingInputStream(InputStream in, ProcessSession session, FlowFile flowFile) {
+      super(in);
+      this.session = session;
+      this.flowFile = flowFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!closed) {
+          closed = true;
+          recordRead(session, flowFile, count, nanos);
+        }
+      }
+    }
+  }
+
+  static class TimedOutputStream extends FilterOutputStream {
+    long count;
+    // spent in the calls of the wrapped stream
+    long nanos;
+
+    TimedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      try {
+        out.write(b);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+      count++;
+    }
+
+    // FilterOutputStream writes arrays byte by byte, delegate them as is
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      try {
+        out.write(b, off, len);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+      count += len;
+    }
+  }
+
+  private static final class RecordingOutputStream extends TimedOutputStream {
+    private final ProcessSession session;
+    private final FlowFile flowFile;
+    private boolean closed;
+
+    RecordingOutputStream(OutputStream out, ProcessSession session, FlowFile flowFile) {
+      super(out);
+      this.session = session;
+      this.flowFile = flowFile;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } finally {
+        if (!closed) {
+          closed = true;
+          recordWrite(session, flowFile, count, nanos);
+        }
+      }
+    }
+  }
+}
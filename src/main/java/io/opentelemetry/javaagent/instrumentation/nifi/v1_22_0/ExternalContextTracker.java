@@ -4,9 +4,14 @@ import io.opentelemetry.context.Context;
 import io.opentelemetry.instrumentation.api.util.VirtualField;
 import org.apache.nifi.processor.ProcessSession;
 
+import javax.annotation.Nullable;
+
 public class ExternalContextTracker {
   private static final VirtualField<ProcessSession, Context> contextMap =
       VirtualField.find(ProcessSession.class, Context.class);
+  // records being bundled into FlowFiles, and the bundles kept open across polls
+  private static final VirtualField<ProcessSession, RecordBundles> recordBundlesMap =
+      VirtualField.find(ProcessSession.class, RecordBundles.class);
 
   private ExternalContextTracker() {}
 
@@ -35,4 +40,12 @@ public class ExternalContextTracker {
     return saved;
   }
 
+  public static void setRecordBundles(ProcessSession session, RecordBundles bundles) {
+    recordBundlesMap.set(session, bundles);
+  }
+
+  @Nullable
+  public static RecordBundles getRecordBundles(ProcessSession session) {
+    return recordBundlesMap.get(session);
+  }
 }
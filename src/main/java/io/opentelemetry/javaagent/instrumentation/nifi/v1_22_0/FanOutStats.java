@@ -0,0 +1,37 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.Span;
+
+/**
+ * Children created from a single FlowFile by a fan-out component, and the size distribution of
+ * the ones transferred. Children share the span of their parent instead of getting their own.
+ */
+final class FanOutStats {
+  private long children;
+  private long transferred;
+  private long totalSize;
+  private long minSize = Long.MAX_VALUE;
+  private long maxSize;
+
+  void childCreated() {
+    children++;
+  }
+
+  void childTransferred(long size) {
+    transferred++;
+    totalSize += size;
+    minSize = Math.min(minSize, size);
+    maxSize = Math.max(maxSize, size);
+  }
+
+  void addTo(Span span) {
+    span.setAttribute("nifi.fanout.children", children);
+    if (transferred > 0) {
+      span.setAttribute("nifi.fanout.transferred", transferred);
+      span.setAttribute("nifi.fanout.size.total", totalSize);
+      span.setAttribute("nifi.fanout.size.min", minSize);
+      span.setAttribute("nifi.fanout.size.max", maxSize);
+      span.setAttribute("nifi.fanout.size.mean", totalSize / transferred);
+    }
+  }
+}
@@ -8,10 +8,23 @@ import java.util.Map;
 public enum FlowFileAttributesTextMapGetter implements TextMapGetter<Map<String, String>> {
   INSTANCE;
 
+  static final String TRACEPARENT = "traceparent";
+
   @Nullable
   @Override
   public String get(Map<String, String> carrier, String key) {
     try {
+      if (TRACEPARENT.equals(key)) {
+        // the compact attribute is only ever written by this extension, so it is the most recent,
+        // an invalid one falls back to the traceparent
+        String compact = carrier.get(CompactTraceContext.ATTRIBUTE);
+        if (compact != null) {
+          String traceparent = CompactTraceContext.toTraceparent(compact);
+          if (traceparent != null) {
+            return traceparent;
+          }
+        }
+      }
       return carrier.get(key);
     } catch (NullPointerException e) {
       return null;
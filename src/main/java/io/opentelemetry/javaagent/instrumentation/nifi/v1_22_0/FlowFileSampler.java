@@ -0,0 +1,125 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceId;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Head sampling of FlowFiles that start a trace, configured per component id or component type.
+ *
+ * The decision is only taken for FlowFiles without a parent context. It travels downstream in the
+ * sampled flag of the propagated context, and FlowFiles arriving with an unsampled parent are never
+ * given a span of their own.
+ */
+public final class FlowFileSampler {
+  private static final Logger logger = Logger.getLogger(FlowFileSampler.class.getName());
+
+  public static final FlowFileSampler ALWAYS = new FlowFileSampler(1.0, 0);
+
+  private static final Map<String, String> ratios = InstrumentationConfig.get().getMap(
+      "otel.instrumentation.nifi.sampling.ratios",
+      Collections.emptyMap()
+  );
+  private static final Map<String, String> rateLimits = InstrumentationConfig.get().getMap(
+      "otel.instrumentation.nifi.sampling.rate-limits",
+      Collections.emptyMap()
+  );
+  // one sampler per configuration key, so rebuilt profiles share the rate limit state
+  private static final ConcurrentHashMap<String, FlowFileSampler> samplers =
+      new ConcurrentHashMap<>();
+
+  private final double ratio;
+  private final long intervalNanos;
+  private final long burstNanos;
+  // theoretical arrival time of the next sampled FlowFile (GCRA)
+  private final AtomicLong nextArrival = new AtomicLong(System.nanoTime());
+
+  private FlowFileSampler(double ratio, double perSecond) {
+    this.ratio = ratio;
+    this.intervalNanos = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+    // allow bursts of up to one second worth of spans
+    this.burstNanos = Math.max(TimeUnit.SECONDS.toNanos(1), intervalNanos);
+  }
+
+  /**
+   * The sampler configured for the component id, or else for the component type
+   */
+  public static FlowFileSampler forComponent(String componentType, String componentId) {
+    if (ratios.isEmpty() && rateLimits.isEmpty()) {
+      return ALWAYS;
+    }
+    if (ratios.containsKey(componentId) || rateLimits.containsKey(componentId)) {
+      return samplers.computeIfAbsent(componentId, FlowFileSampler::create);
+    }
+    if (ratios.containsKey(componentType) || rateLimits.containsKey(componentType)) {
+      return samplers.computeIfAbsent(componentType, FlowFileSampler::create);
+    }
+    return ALWAYS;
+  }
+
+  private static FlowFileSampler create(String key) {
+    return new FlowFileSampler(parse(ratios, key, 1.0), parse(rateLimits, key, 0));
+  }
+
+  private static double parse(Map<String, String> values, String key, double defaultValue) {
+    String value = values.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      logger.warning("invalid sampling value for " + key + ": " + value);
+      return defaultValue;
+    }
+  }
+
+  public boolean shouldSample() {
+    if (ratio < 1.0 && ThreadLocalRandom.current().nextDouble() >= ratio) {
+      return false;
+    }
+    return intervalNanos == 0 || acquire();
+  }
+
+  private boolean acquire() {
+    long now = System.nanoTime();
+    while (true) {
+      long arrival = nextArrival.get();
+      long next = (arrival - now > 0 ? arrival : now) + intervalNanos;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (nextArrival.compareAndSet(arrival, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * A new root context with the sampled flag off, to carry the decision downstream
+   */
+  public static SpanContext unsampledRootContext() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long spanId;
+    do {
+      spanId = random.nextLong();
+    } while (spanId == 0);
+    return SpanContext.create(
+        TraceId.fromLongs(random.nextLong(), random.nextLong() | 1),
+        SpanId.fromLong(spanId),
+        TraceFlags.getDefault(),
+        TraceState.getDefault()
+    );
+  }
+}
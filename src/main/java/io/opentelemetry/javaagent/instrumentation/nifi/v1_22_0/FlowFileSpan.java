@@ -0,0 +1,151 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The span and scope opened for a single FlowFile, as tracked by {@link FlowFileSpanRegistry}
+ */
+public final class FlowFileSpan {
+  private static final AtomicIntegerFieldUpdater<FlowFileSpan> endedUpdater =
+      AtomicIntegerFieldUpdater.newUpdater(FlowFileSpan.class, "ended");
+
+  public final long flowFileId;
+  public final Span span;
+  public final Scope scope;
+  // spans shared by several FlowFiles are ended through a single owning entry
+  public final boolean ownsSpan;
+  public final long startNanos;
+  // the component handling the FlowFile, null outside of onTrigger
+  public final ConnectableProfile profile;
+  // the attributes the FlowFile had when tracked, only kept in attribute diff mode
+  public final Map<String, String> initialAttributes;
+
+  // the span may be ended by the reaper thread as well as by the session
+  private volatile int ended;
+  // the context the scope made current, only closed by the onTrigger that opened it, newest first
+  Context scopeContext;
+  private boolean scopeClosed;
+
+  // shared by the FlowFiles of a batch or session span, recorded by the owner or the session span
+  RelationshipCounts relationships;
+  // set on Kafka record bundles, which keep collecting links until they end
+  LinkCollector links;
+
+  // set on the parent and the children of a fan-out, recorded by the entry owning the span
+  FanOutStats fanOut;
+  // only set on the children, which share the span of their parent
+  boolean fanOutChild;
+
+  // content repository totals, only touched by the thread owning the session
+  private long contentBytesRead;
+  private long contentBytesWritten;
+  private long contentNanos;
+
+  // insertion order links, maintained by the owning registry
+  FlowFileSpan previous;
+  FlowFileSpan next;
+
+  public FlowFileSpan(
+      long flowFileId,
+      Span span,
+      Scope scope,
+      boolean ownsSpan,
+      ConnectableProfile profile,
+      Map<String, String> initialAttributes
+  ) {
+    this.flowFileId = flowFileId;
+    this.span = span;
+    this.scope = scope;
+    this.ownsSpan = ownsSpan;
+    this.profile = profile;
+    this.initialAttributes = initialAttributes;
+    this.startNanos = System.nanoTime();
+    if (ownsSpan) {
+      SpanReaper.opened();
+    }
+  }
+
+  void addContentRead(long bytes, long nanos) {
+    contentBytesRead += bytes;
+    contentNanos += nanos;
+  }
+
+  void addContentWritten(long bytes, long nanos) {
+    contentBytesWritten += bytes;
+    contentNanos += nanos;
+  }
+
+  boolean isEnded() {
+    return ended != 0;
+  }
+
+  private boolean markEnded() {
+    return ownsSpan && endedUpdater.compareAndSet(this, 0, 1);
+  }
+
+  /**
+   * Closes the scope, once. Only called on the thread that opened it. A scope only restores the
+   * previous context while its own context is current, any other close would be ignored
+   *
+   * @return true if the scope is closed
+   */
+  boolean closeScope() {
+    if (scope == null || scopeClosed) {
+      return true;
+    }
+    if (Java8BytecodeBridge.currentContext() != scopeContext) {
+      return false;
+    }
+    scope.close();
+    scopeClosed = true;
+    return true;
+  }
+
+  /**
+   * ends the span if owned and records the FlowFile metrics, the scope is left to the onTrigger
+   */
+  void end() {
+    ProcessorMetrics.recordDuration(profile, System.nanoTime() - startNanos);
+    if (markEnded()) {
+      if (fanOut != null && span.isRecording()) {
+        fanOut.addTo(span);
+      }
+      if (relationships != null && span.isRecording()) {
+        relationships.addTo(span);
+      }
+      if (links != null && span.isRecording()) {
+        span.setAttribute("nifi.links.dropped", links.dropped());
+        links.addOverflowTo(span);
+      }
+      if (contentNanos > 0 && span.isRecording()) {
+        span.setAttribute("nifi.content.bytes_read", contentBytesRead);
+        span.setAttribute("nifi.content.bytes_written", contentBytesWritten);
+        span.setAttribute("nifi.content.duration_ms", TimeUnit.NANOSECONDS.toMillis(contentNanos));
+      }
+      AsyncEnrichment.end(span);
+      SpanReaper.ended();
+    }
+  }
+
+  /**
+   * Ends the span from another thread, the scope is left for the owning thread to close
+   *
+   * @return true if the span was ended by this call
+   */
+  boolean reap() {
+    if (!markEnded()) {
+      return false;
+    }
+    span.setAttribute("nifi.span.reaped", true);
+    span.end();
+    SpanReaper.ended();
+    return true;
+  }
+}
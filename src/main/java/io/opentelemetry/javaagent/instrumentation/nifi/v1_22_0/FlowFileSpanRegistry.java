@@ -0,0 +1,220 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the {@link FlowFileSpan} of every FlowFile handled by a single ProcessSession, keyed by
+ * {@link org.apache.nifi.flowfile.FlowFile#getId()}.
+ *
+ * A session is only ever used by one thread at a time, so the registry is not thread safe.
+ * Entries are kept in an open addressing table of primitive keys and are also linked in insertion
+ * order, so the whole registry can be ended newest first without any per-key allocation.
+ */
+public final class FlowFileSpanRegistry {
+  private static final int INITIAL_CAPACITY = 16;
+  // registries are pooled, don't keep the tables of an unusually large batch around
+  private static final int MAX_RETAINED_CAPACITY = 1024;
+
+  private long[] keys;
+  private FlowFileSpan[] values;
+  private int mask;
+  private int size;
+
+  private FlowFileSpan head;
+  private FlowFileSpan tail;
+
+  // propagation carrier reused across the transfers of the session
+  private Map<String, String> carrier;
+  // set while the registry is in use by a session, see SpanReaper
+  SpanReaper.Registration registration;
+
+  public FlowFileSpanRegistry() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new FlowFileSpan[capacity];
+    mask = capacity - 1;
+  }
+
+  static int hash(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * An empty carrier to inject into, callers must clear it once done
+   */
+  public Map<String, String> carrier() {
+    if (carrier == null) {
+      carrier = new HashMap<>(4);
+    }
+    return carrier;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public FlowFileSpan get(long flowFileId) {
+    int index = hash(flowFileId) & mask;
+    FlowFileSpan value;
+    while ((value = values[index]) != null) {
+      if (keys[index] == flowFileId) {
+        return value;
+      }
+      index = (index + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Adds the entry, returning the entry previously tracked for the same FlowFile if any
+   */
+  public FlowFileSpan put(FlowFileSpan entry) {
+    FlowFileSpan previous = remove(entry.flowFileId);
+    if ((size + 1) * 4 > values.length * 3) {
+      rehash(values.length << 1);
+    }
+    insert(entry);
+    link(entry);
+    size++;
+    return previous;
+  }
+
+  public FlowFileSpan remove(long flowFileId) {
+    int index = hash(flowFileId) & mask;
+    FlowFileSpan value;
+    while ((value = values[index]) != null) {
+      if (keys[index] == flowFileId) {
+        shiftBack(index);
+        unlink(value);
+        size--;
+        return value;
+      }
+      index = (index + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Ends every tracked entry, newest first, and clears the registry. Scopes are left open, the
+   * onTrigger that opened them closes them in order
+   */
+  public void endAll() {
+    FlowFileSpan entry = tail;
+    clear();
+    while (entry != null) {
+      FlowFileSpan previous = entry.previous;
+      entry.previous = null;
+      entry.next = null;
+      entry.end();
+      entry = previous;
+    }
+  }
+
+  /**
+   * Ends the spans started before the deadline. Called from the reaper thread while the session
+   * may be in use: it only reads the table, and entries are safely published through their final
+   * fields, so at worst a concurrently added or removed entry is missed until the next sweep.
+   *
+   * @return the number of spans ended
+   */
+  int reap(long deadlineNanos) {
+    FlowFileSpan[] table = values;
+    int reaped = 0;
+    for (FlowFileSpan entry : table) {
+      if (entry != null && entry.startNanos - deadlineNanos < 0 && entry.reap()) {
+        reaped++;
+      }
+    }
+    return reaped;
+  }
+
+  /**
+   * the oldest entry, following entries are reached through {@link FlowFileSpan#next}
+   */
+  FlowFileSpan oldest() {
+    return head;
+  }
+
+  public void clear() {
+    if (values.length > MAX_RETAINED_CAPACITY) {
+      allocate(INITIAL_CAPACITY);
+    } else if (size > 0) {
+      Arrays.fill(values, null);
+    }
+    head = null;
+    tail = null;
+    size = 0;
+  }
+
+  private void insert(FlowFileSpan entry) {
+    int index = hash(entry.flowFileId) & mask;
+    while (values[index] != null) {
+      index = (index + 1) & mask;
+    }
+    keys[index] = entry.flowFileId;
+    values[index] = entry;
+  }
+
+  private void rehash(int capacity) {
+    FlowFileSpan[] oldValues = values;
+    allocate(capacity);
+    for (FlowFileSpan value : oldValues) {
+      if (value != null) {
+        insert(value);
+      }
+    }
+  }
+
+  // backward shift deletion keeps probe sequences intact without tombstones
+  private void shiftBack(int index) {
+    int free = index;
+    int current = (index + 1) & mask;
+    FlowFileSpan value;
+    while ((value = values[current]) != null) {
+      int desired = hash(keys[current]) & mask;
+      if (((current - desired) & mask) >= ((current - free) & mask)) {
+        keys[free] = keys[current];
+        values[free] = value;
+        free = current;
+      }
+      current = (current + 1) & mask;
+    }
+    values[free] = null;
+  }
+
+  private void link(FlowFileSpan entry) {
+    entry.previous = tail;
+    entry.next = null;
+    if (tail == null) {
+      head = entry;
+    } else {
+      tail.next = entry;
+    }
+    tail = entry;
+  }
+
+  private void unlink(FlowFileSpan entry) {
+    if (entry.previous == null) {
+      head = entry.next;
+    } else {
+      entry.previous.next = entry.next;
+    }
+    if (entry.next == null) {
+      tail = entry.previous;
+    } else {
+      entry.next.previous = entry.previous;
+    }
+    entry.previous = null;
+    entry.next = null;
+  }
+}
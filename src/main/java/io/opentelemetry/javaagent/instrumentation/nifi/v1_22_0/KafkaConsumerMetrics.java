@@ -0,0 +1,133 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Poll, commit and rebalance metrics of the ConsumeKafka consumer leases.
+ *
+ * Poll and commit durations carry the attributes of the consuming component. Records per poll and
+ * record age are recorded per topic partition. The age of the newest record of the partition in
+ * the poll is how far the consumer is behind in time, consumed records do not carry the partition
+ * end offset an offset lag would need.
+ */
+public final class KafkaConsumerMetrics {
+  static final AttributeKey<String> TOPIC = AttributeKey.stringKey("messaging.destination.name");
+  static final AttributeKey<Long> PARTITION =
+      AttributeKey.longKey("messaging.kafka.destination.partition");
+  static final AttributeKey<String> REBALANCE = AttributeKey.stringKey("nifi.kafka.rebalance");
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final double MILLIS_PER_SECOND = 1000.0;
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final DoubleHistogram pollDuration =
+      meter.histogramBuilder("nifi.kafka.poll.duration")
+          .setDescription("Time a consumer lease spent polling Kafka, excluding writing the records")
+          .setUnit("s")
+          .build();
+  private static final LongHistogram pollRecords =
+      meter.histogramBuilder("nifi.kafka.poll.records")
+          .setDescription("Records returned by a single poll for a topic partition")
+          .setUnit("{record}")
+          .ofLongs()
+          .build();
+  private static final DoubleHistogram recordAge =
+      meter.histogramBuilder("nifi.kafka.consumer.record_age")
+          .setDescription("Age of the newest record of a topic partition when it was polled")
+          .setUnit("s")
+          .build();
+  private static final DoubleHistogram commitDuration =
+      meter.histogramBuilder("nifi.kafka.commit.duration")
+          .setDescription("Time a consumer lease spent committing offsets")
+          .setUnit("s")
+          .build();
+  private static final LongCounter rebalancedPartitions =
+      meter.counterBuilder("nifi.kafka.rebalance.partitions")
+          .setDescription("Partitions assigned to or revoked from consumer leases")
+          .setUnit("{partition}")
+          .build();
+
+  private static final Attributes ASSIGNED = Attributes.of(REBALANCE, "assigned");
+  private static final Attributes REVOKED = Attributes.of(REBALANCE, "revoked");
+
+  // poll and processRecords run on the thread holding the lease
+  private static final ThreadLocal<long[]> pollStart = ThreadLocal.withInitial(() -> new long[1]);
+  private static final ConcurrentHashMap<TopicPartition, Attributes> partitionAttributes =
+      new ConcurrentHashMap<>();
+
+  private KafkaConsumerMetrics() {}
+
+  public static void pollStarted() {
+    pollStart.get()[0] = System.nanoTime();
+  }
+
+  /**
+   * Called with the records of the poll, before they are written to FlowFiles
+   */
+  public static void polled(ConsumerRecords<byte[], byte[]> records) {
+    if (!ProcessorMetrics.enabled) {
+      return;
+    }
+    long[] start = pollStart.get();
+    if (start[0] != 0) {
+      pollDuration.record(
+          (System.nanoTime() - start[0]) / NANOS_PER_SECOND, componentAttributes());
+      start[0] = 0;
+    }
+    if (records == null || records.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (TopicPartition partition : records.partitions()) {
+      List<ConsumerRecord<byte[], byte[]>> partitionRecords = records.records(partition);
+      Attributes attributes = attributesOf(partition);
+      pollRecords.record(partitionRecords.size(), attributes);
+      long timestamp = partitionRecords.get(partitionRecords.size() - 1).timestamp();
+      if (timestamp > 0) {
+        recordAge.record(Math.max(now - timestamp, 0) / MILLIS_PER_SECOND, attributes);
+      }
+    }
+  }
+
+  public static void committed(long startNanos) {
+    if (ProcessorMetrics.enabled) {
+      commitDuration.record(
+          (System.nanoTime() - startNanos) / NANOS_PER_SECOND, componentAttributes());
+    }
+  }
+
+  public static void rebalanced(Collection<TopicPartition> partitions, boolean assigned) {
+    if (ProcessorMetrics.enabled && partitions != null) {
+      rebalancedPartitions.add(partitions.size(), assigned ? ASSIGNED : REVOKED);
+    }
+  }
+
+  private static Attributes componentAttributes() {
+    ConnectableProfile profile = ActiveConnectableSaver.profile();
+    return profile == null ? Attributes.empty() : profile.metricAttributes;
+  }
+
+  private static Attributes attributesOf(TopicPartition partition) {
+    Attributes attributes = partitionAttributes.get(partition);
+    if (attributes == null) {
+      attributes = Attributes.of(
+          TOPIC, partition.topic(), PARTITION, (long) partition.partition());
+      partitionAttributes.put(partition, attributes);
+    }
+    return attributes;
+  }
+}
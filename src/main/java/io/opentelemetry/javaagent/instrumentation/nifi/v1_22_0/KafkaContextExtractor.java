@@ -0,0 +1,146 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Extracts the context of a consumed Kafka record without going through the generic text map
+ * getter, which decodes every header value to a String.
+ *
+ * Only the propagator's fields are looked up. A record without any of them costs a few header
+ * lookups, and a record carrying only a traceparent is parsed straight from the header bytes
+ * through a small cache keyed by those bytes, so repeated parents allocate nothing. Anything else,
+ * like a tracestate, baggage or another propagation format, goes through the full extraction.
+ */
+public final class KafkaContextExtractor {
+  private static final int CACHE_SIZE = 1024;
+  // W3C traceparent: 00-<32 hex trace id>-<16 hex span id>-<2 hex flags>
+  private static final int TRACEPARENT_LENGTH = 55;
+  private static final int TRACE_ID_OFFSET = 3;
+  private static final int SPAN_ID_OFFSET = 36;
+  private static final int FLAGS_OFFSET = 53;
+
+  // direct mapped by the hash of the header bytes, racy but entries are immutable
+  private static final CachedContext[] cache = new CachedContext[CACHE_SIZE];
+
+  private KafkaContextExtractor() {}
+
+  public static Context extract(@Nullable Headers headers) {
+    // using root context because we want only the extracted context if exists
+    Context root = Java8BytecodeBridge.rootContext();
+    if (headers == null) {
+      return root;
+    }
+    TextMapPropagator propagator = GlobalOpenTelemetry.getPropagators().getTextMapPropagator();
+    String[] otherFields = ParsedContextCache.otherFields(propagator);
+    if (otherFields == null) {
+      return propagator.extract(root, headers, KafkaHeadersGetter.INSTANCE);
+    }
+    for (String field : otherFields) {
+      if (headers.lastHeader(field) != null) {
+        return propagator.extract(root, headers, KafkaHeadersGetter.INSTANCE);
+      }
+    }
+    Header header = headers.lastHeader(FlowFileAttributesTextMapGetter.TRACEPARENT);
+    if (header == null) {
+      return root;
+    }
+    if (headers.lastHeader(ParsedContextCache.TRACESTATE) != null) {
+      return ParsedContextCache.extract(root, headers, KafkaHeadersGetter.INSTANCE);
+    }
+    byte[] value = header.value();
+    SpanContext spanContext = value == null ? null : lookup(value);
+    return spanContext == null ? root : root.with(Span.wrap(spanContext));
+  }
+
+  @Nullable
+  private static SpanContext lookup(byte[] value) {
+    if (ParsedContextCache.maxSize <= 0) {
+      return parse(value);
+    }
+    int hash = Arrays.hashCode(value);
+    int index = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    CachedContext cached = cache[index];
+    if (cached != null && Arrays.equals(cached.traceparent, value)) {
+      ParsedContextCache.hits.add(1);
+      return cached.spanContext;
+    }
+    ParsedContextCache.misses.add(1);
+    SpanContext spanContext = parse(value);
+    if (spanContext != null) {
+      cache[index] = new CachedContext(value.clone(), spanContext);
+    }
+    return spanContext;
+  }
+
+  /**
+   * @return the remote span context of a W3C traceparent value, or null if it is not valid
+   */
+  @Nullable
+  static SpanContext parse(byte[] value) {
+    if (value.length < TRACEPARENT_LENGTH
+        || value[2] != '-' || value[SPAN_ID_OFFSET - 1] != '-' || value[FLAGS_OFFSET - 1] != '-'
+        || !isHex(value, 0, 2) || (value[0] == 'f' && value[1] == 'f')) {
+      return null;
+    }
+    boolean version0 = value[0] == '0' && value[1] == '0';
+    // later versions may append fields after another dash
+    if (value.length > TRACEPARENT_LENGTH
+        && (version0 || value[TRACEPARENT_LENGTH] != '-')) {
+      return null;
+    }
+    if (!isHex(value, FLAGS_OFFSET, 2)) {
+      return null;
+    }
+    // trace and span id validity (lowercase hex, not all zero) is checked by the SpanContext
+    SpanContext spanContext = SpanContext.createFromRemoteParent(
+        new String(value, TRACE_ID_OFFSET, 32, StandardCharsets.ISO_8859_1),
+        new String(value, SPAN_ID_OFFSET, 16, StandardCharsets.ISO_8859_1),
+        TraceFlags.fromByte((byte) (hexValue(value[FLAGS_OFFSET]) << 4
+            | hexValue(value[FLAGS_OFFSET + 1]))),
+        TraceState.getDefault()
+    );
+    return spanContext.isValid() ? spanContext : null;
+  }
+
+  private static boolean isHex(byte[] value, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      if (hexValue(value[i]) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hexValue(byte b) {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    return -1;
+  }
+
+  private static final class CachedContext {
+    final byte[] traceparent;
+    final SpanContext spanContext;
+
+    CachedContext(byte[] traceparent, SpanContext spanContext) {
+      this.traceparent = traceparent;
+      this.spanContext = spanContext;
+    }
+  }
+}
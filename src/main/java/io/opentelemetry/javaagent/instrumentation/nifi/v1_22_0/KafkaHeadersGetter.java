@@ -11,9 +11,9 @@ import org.apache.kafka.common.header.Headers;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 enum KafkaHeadersGetter implements TextMapGetter<Headers> {
   INSTANCE;
@@ -21,11 +21,13 @@ enum KafkaHeadersGetter implements TextMapGetter<Headers> {
   @Override
   public Iterable<String> keys(@Nullable Headers carrier) {
     if (carrier == null) {
-      return new LinkedList<>();
+      return Collections.emptyList();
     }
-    return StreamSupport.stream(carrier.spliterator(), false)
-        .map(Header::key)
-        .collect(Collectors.toList());
+    List<String> keys = new ArrayList<>();
+    for (Header header : carrier) {
+      keys.add(header.key());
+    }
+    return keys;
   }
 
   @Override
@@ -0,0 +1,92 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledgement latency and batch size of the records PublishKafka sends, per topic.
+ *
+ * The latency runs from the send of a record until the producer callback, so it includes the time
+ * spent in the producer batch and the broker round trip. The batch size is the number of records
+ * sent for a single FlowFile.
+ */
+public final class KafkaProducerMetrics {
+  static final AttributeKey<String> ERROR_TYPE = AttributeKey.stringKey("error.type");
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final DoubleHistogram ackDuration =
+      meter.histogramBuilder("nifi.kafka.publish.ack.duration")
+          .setDescription("Time from sending a record to Kafka until it is acknowledged or failed")
+          .setUnit("s")
+          .build();
+  private static final LongHistogram batchSize =
+      meter.histogramBuilder("nifi.kafka.publish.batch.size")
+          .setDescription("Records sent to Kafka for a single FlowFile")
+          .setUnit("{record}")
+          .ofLongs()
+          .build();
+
+  private static final ConcurrentHashMap<String, Attributes> topicAttributes =
+      new ConcurrentHashMap<>();
+
+  private KafkaProducerMetrics() {}
+
+  public static Callback timeAck(String topic, Callback callback) {
+    if (!ProcessorMetrics.enabled || topic == null) {
+      return callback;
+    }
+    return new AckCallback(callback, attributesOf(topic));
+  }
+
+  public static void recordBatch(String topic, int records) {
+    if (ProcessorMetrics.enabled && topic != null) {
+      batchSize.record(records, attributesOf(topic));
+    }
+  }
+
+  private static Attributes attributesOf(String topic) {
+    Attributes attributes = topicAttributes.get(topic);
+    if (attributes == null) {
+      attributes = Attributes.of(KafkaConsumerMetrics.TOPIC, topic);
+      topicAttributes.put(topic, attributes);
+    }
+    return attributes;
+  }
+
+  static final class AckCallback implements Callback {
+    private final long startNanos = System.nanoTime();
+    private final Callback delegate;
+    private final Attributes attributes;
+
+    AckCallback(Callback delegate, Attributes attributes) {
+      this.delegate = delegate;
+      this.attributes = attributes;
+    }
+
+    @Override
+    public void onCompletion(RecordMetadata metadata, Exception exception) {
+      double seconds = (System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+      if (exception == null) {
+        ackDuration.record(seconds, attributes);
+      } else {
+        ackDuration.record(seconds, attributes.toBuilder()
+            .put(ERROR_TYPE, exception.getClass().getName())
+            .build());
+      }
+      if (delegate != null) {
+        delegate.onCompletion(metadata, exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the distinct parent span contexts of a span with several parents, up to a cap
+ */
+public final class LinkCollector {
+  private static final AttributeKey<List<String>> OVERFLOW_TRACE_IDS =
+      AttributeKey.stringArrayKey("nifi.links.overflow.trace_ids");
+  private static final AttributeKey<List<Long>> OVERFLOW_COUNTS =
+      AttributeKey.longArrayKey("nifi.links.overflow.counts");
+
+  private final int maxLinks;
+  private final Set<SpanContext> links = new LinkedHashSet<>();
+  private boolean truncated;
+  // parents beyond the cap, counted per trace id for up to maxLinks traces
+  private Map<String, long[]> overflow;
+  private long dropped;
+
+  public LinkCollector(int maxLinks) {
+    this.maxLinks = maxLinks;
+  }
+
+  /**
+   * @return false if the cap was already reached and the context was not collected
+   */
+  public boolean add(SpanContext spanContext) {
+    if (!spanContext.isValid() || links.contains(spanContext)) {
+      return true;
+    }
+    if (isFull()) {
+      truncated = true;
+      return false;
+    }
+    links.add(spanContext);
+    return true;
+  }
+
+  /**
+   * Like {@link #add}, but once the cap is reached the parent is counted under its trace instead
+   */
+  public void addOrCount(SpanContext spanContext) {
+    if (!add(spanContext)) {
+      count(spanContext);
+    }
+  }
+
+  /**
+   * Like {@link #addOrCount(SpanContext)} for a span already started, which is linked right away
+   * to a context not collected yet
+   */
+  public void addOrCount(Span span, SpanContext spanContext) {
+    if (!spanContext.isValid() || links.contains(spanContext)) {
+      return;
+    }
+    if (isFull()) {
+      truncated = true;
+      count(spanContext);
+      return;
+    }
+    links.add(spanContext);
+    span.addLink(spanContext);
+  }
+
+  private void count(SpanContext spanContext) {
+    dropped++;
+    if (overflow == null) {
+      overflow = new LinkedHashMap<>();
+    }
+    long[] count = overflow.get(spanContext.getTraceId());
+    if (count == null) {
+      if (overflow.size() >= maxLinks) {
+        return;
+      }
+      count = new long[1];
+      overflow.put(spanContext.getTraceId(), count);
+    }
+    count[0]++;
+  }
+
+  /**
+   * parents counted instead of linked because the cap was reached
+   */
+  public long dropped() {
+    return dropped;
+  }
+
+  /**
+   * Records the per trace counts of parents that were not linked as an event
+   */
+  public void addOverflowTo(Span span) {
+    if (overflow == null) {
+      return;
+    }
+    List<String> traceIds = new ArrayList<>(overflow.size());
+    List<Long> counts = new ArrayList<>(overflow.size());
+    for (Map.Entry<String, long[]> entry : overflow.entrySet()) {
+      traceIds.add(entry.getKey());
+      counts.add(entry.getValue()[0]);
+    }
+    span.addEvent("nifi.links.overflow",
+        Attributes.of(OVERFLOW_TRACE_IDS, traceIds, OVERFLOW_COUNTS, counts));
+  }
+
+  public boolean isFull() {
+    return links.size() >= maxLinks;
+  }
+
+  /**
+   * true once a distinct context was dropped because of the cap
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void addTo(Span span) {
+    for (SpanContext link : links) {
+      span.addLink(link);
+    }
+  }
+
+  public SpanBuilder addTo(SpanBuilder spanBuilder) {
+    for (SpanContext link : links) {
+      spanBuilder.addLink(link);
+    }
+    return spanBuilder;
+  }
+}
@@ -6,7 +6,7 @@
 package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
 
 import io.opentelemetry.api.trace.StatusCode;
-import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
+import io.opentelemetry.javaagent.bootstrap.CallDepth;
 import io.opentelemetry.javaagent.extension.instrumentation.TypeInstrumentation;
 import io.opentelemetry.javaagent.extension.instrumentation.TypeTransformer;
 import io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers;
@@ -14,6 +14,7 @@ import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
 import org.apache.nifi.connectable.Connectable;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSessionFactory;
 
@@ -44,9 +45,22 @@ public class NiFiComponentLogInstrumentation implements TypeInstrumentation {
   @SuppressWarnings("unused")
   public static class ErrorAdvice {
 
+    /**
+     * Only the outermost error call is recorded, overloads and wrapping loggers delegate to others
+     */
     @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static void onEnter() {
-      Java8BytecodeBridge.currentSpan().setStatus(StatusCode.ERROR);
+    public static CallDepth onEnter() {
+      CallDepth callDepth = CallDepth.forClass(ComponentLog.class);
+      if (callDepth.getAndIncrement() == 0) {
+        ActiveConnectableSaver.currentSpan().setStatus(StatusCode.ERROR);
+        ProcessorMetrics.recordError(ActiveConnectableSaver.profile());
+      }
+      return callDepth;
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void onExit(@Advice.Enter CallDepth callDepth) {
+      callDepth.decrementAndGet();
     }
   }
 }
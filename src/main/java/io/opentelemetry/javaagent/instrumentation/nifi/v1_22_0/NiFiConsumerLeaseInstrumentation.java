@@ -12,8 +12,13 @@ import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.nifi.processor.ProcessSession;
 
+import java.util.Collection;
+import java.util.List;
+
 import static io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers.hasClassesNamed;
 import static net.bytebuddy.matcher.ElementMatchers.*;
 
@@ -39,6 +44,30 @@ public class NiFiConsumerLeaseInstrumentation implements TypeInstrumentation {
             .and(takesArgument(0, ProcessSession.class))
             .and(isPrivate()),
         NiFiConsumerLeaseInstrumentation.class.getName() + "$WriteDataAdvice");
+    // demarcated and record oriented consumers bundle several records per FlowFile
+    typeTransformer.applyAdviceToMethod(namedOneOf("writeDemarcatedData", "writeRecordData")
+            .and(takesArguments(3))
+            .and(takesArgument(0, ProcessSession.class))
+            .and(takesArgument(1, List.class))
+            .and(takesArgument(2, TopicPartition.class))
+            .and(isPrivate()),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$WriteBundleAdvice");
+
+    // poll() hands the polled records to processRecords before writing them
+    typeTransformer.applyAdviceToMethod(named("poll").and(takesNoArguments()),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$PollAdvice");
+    typeTransformer.applyAdviceToMethod(namedOneOf("processRecords")
+            .and(takesArguments(ConsumerRecords.class))
+            .and(isPrivate()),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$ProcessRecordsAdvice");
+    typeTransformer.applyAdviceToMethod(namedOneOf("commit").and(takesNoArguments()),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$CommitAdvice");
+    typeTransformer.applyAdviceToMethod(namedOneOf("onPartitionsAssigned")
+            .and(takesArguments(Collection.class)),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$PartitionsAssignedAdvice");
+    typeTransformer.applyAdviceToMethod(namedOneOf("onPartitionsRevoked")
+            .and(takesArguments(Collection.class)),
+        NiFiConsumerLeaseInstrumentation.class.getName() + "$PartitionsRevokedAdvice");
   }
 
   @SuppressWarnings("unused")
@@ -50,5 +79,72 @@ public class NiFiConsumerLeaseInstrumentation implements TypeInstrumentation {
     ) {
       ConsumerLeaseSingletons.setContext(session, record);
     }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(@Advice.Argument(0) ProcessSession session) {
+      ConsumerLeaseSingletons.clearContext(session);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class WriteBundleAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+        @Advice.Argument(0) ProcessSession session,
+        @Advice.Argument(1) List<ConsumerRecord<byte[], byte[]>> records,
+        @Advice.Argument(2) TopicPartition partition
+    ) {
+      ConsumerLeaseSingletons.startBundle(session, records, partition);
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(@Advice.Argument(0) ProcessSession session) {
+      ConsumerLeaseSingletons.endBundle(session);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class PollAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter() {
+      KafkaConsumerMetrics.pollStarted();
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class ProcessRecordsAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(@Advice.Argument(0) ConsumerRecords<byte[], byte[]> records) {
+      KafkaConsumerMetrics.polled(records);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class CommitAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static long onEnter() {
+      return System.nanoTime();
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(@Advice.Enter long startNanos) {
+      KafkaConsumerMetrics.committed(startNanos);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class PartitionsAssignedAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(@Advice.Argument(0) Collection<TopicPartition> partitions) {
+      KafkaConsumerMetrics.rebalanced(partitions, true);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class PartitionsRevokedAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(@Advice.Argument(0) Collection<TopicPartition> partitions) {
+      KafkaConsumerMetrics.rebalanced(partitions, false);
+    }
   }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.javaagent.extension.instrumentation.TypeInstrumentation;
+import io.opentelemetry.javaagent.extension.instrumentation.TypeTransformer;
+import io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import static io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers.hasClassesNamed;
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Instrumenting the Kafka producers used by the Nifi publisher lease for context injection.
+ * Any producer implementation is matched, so a mock producer is instrumented the same way.
+ */
+public class NiFiKafkaProducerInstrumentation implements TypeInstrumentation {
+  @Override
+  public ElementMatcher<ClassLoader> classLoaderOptimization() {
+    return hasClassesNamed("org.apache.nifi.processors.kafka.pubsub.PublisherLease");
+  }
+
+  @Override
+  public ElementMatcher<TypeDescription> typeMatcher() {
+    return AgentElementMatchers.implementsInterface(
+        namedOneOf("org.apache.kafka.clients.producer.Producer"));
+  }
+
+  @Override
+  public void transform(TypeTransformer typeTransformer) {
+    typeTransformer.applyAdviceToMethod(namedOneOf("send")
+            .and(takesArguments(ProducerRecord.class, Callback.class))
+            .and(isPublic()),
+        NiFiKafkaProducerInstrumentation.class.getName() + "$SendAdvice");
+  }
+
+  @SuppressWarnings("unused")
+  public static class SendAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+        @Advice.Argument(0) ProducerRecord<?, ?> record,
+        @Advice.Argument(value = 1, readOnly = false) Callback callback
+    ) {
+      callback = PublisherLeaseSingletons.onSend(record, callback);
+    }
+  }
+}
@@ -11,10 +11,16 @@ import io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers;
 import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
+import org.apache.nifi.connectable.Connection;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.io.StreamCallback;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
 
@@ -83,6 +89,55 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
     typeTransformer.applyAdviceToMethod(
         namedOneOf("migrate").and(isSynchronized()).and(isPrivate()),
         this.getClass().getName() + "$NiFiProcessMigrateAdvice");
+
+    // every rollback variant ends up in rollback(penalize, rollbackCheckpoint)
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("rollback").and(takesArguments(boolean.class, boolean.class)),
+        this.getClass().getName() + "$NiFiProcessRollbackAdvice");
+
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("remove").and(takesArguments(FlowFile.class)),
+        this.getClass().getName() + "$NiFiProcessRemoveAdvice");
+
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("remove").and(takesArguments(Collection.class)),
+        this.getClass().getName() + "$NiFiProcessRemoveListAdvice");
+
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("read").and(takesArguments(FlowFile.class, InputStreamCallback.class)),
+        this.getClass().getName() + "$NiFiProcessReadAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("read").and(takesArguments(FlowFile.class)).and(returns(InputStream.class)),
+        this.getClass().getName() + "$NiFiProcessReadStreamAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("write").and(takesArguments(FlowFile.class, StreamCallback.class)),
+        this.getClass().getName() + "$NiFiProcessStreamWriteAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("write").and(takesArguments(FlowFile.class, OutputStreamCallback.class)),
+        this.getClass().getName() + "$NiFiProcessWriteAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("append").and(takesArguments(FlowFile.class, OutputStreamCallback.class)),
+        this.getClass().getName() + "$NiFiProcessAppendAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("write").and(takesArguments(FlowFile.class)).and(returns(OutputStream.class)),
+        this.getClass().getName() + "$NiFiProcessWriteStreamAdvice");
+    // the imported content is the size of the resulting FlowFile
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("importFrom").and(takesArguments(2).or(takesArguments(3)))
+            .and(returns(FlowFile.class)),
+        this.getClass().getName() + "$NiFiProcessImportAdvice");
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("exportTo").and(takesArgument(0, FlowFile.class)),
+        this.getClass().getName() + "$NiFiProcessExportAdvice");
+    // the two argument merge delegates to this one
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("merge").and(takesArguments(5)).and(returns(FlowFile.class)),
+        this.getClass().getName() + "$NiFiProcessMergeContentAdvice");
+
+    // every FlowFile taken from an inbound connection is registered through here
+    typeTransformer.applyAdviceToMethod(
+        namedOneOf("registerDequeuedRecord").and(isPrivate()).and(takesArguments(2)),
+        this.getClass().getName() + "$NiFiProcessDequeueAdvice");
   }
 
   @SuppressWarnings("unused")
@@ -93,7 +148,7 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.This ProcessSession session,
         @Advice.Return FlowFile flowFile
     ) {
-      if (flowFile != null) {
+      if (flowFile != null && !ActiveConnectableSaver.isDisabled()) {
         ProcessSessionSingletons.startFileHandlingSpan(session, flowFile);
       }
     }
@@ -107,7 +162,7 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.This ProcessSession session,
         @Advice.Return List<FlowFile> flowFiles
     ) {
-      if (flowFiles != null) {
+      if (flowFiles != null && !ActiveConnectableSaver.isDisabled()) {
         ProcessSessionSingletons.startFileHandlingSpan(session, flowFiles);
       }
     }
@@ -122,7 +177,7 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
             @Advice.Argument(value = 0) FlowFile inFlowFile,
             @Advice.Return FlowFile createdFlowFile
     ) {
-      if (createdFlowFile!= null) {
+      if (createdFlowFile != null && !ActiveConnectableSaver.isDisabled()) {
         ProcessSessionSingletons.startCreateFromFileSpan(session, inFlowFile, createdFlowFile);
       }
     }
@@ -137,8 +192,9 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.Return FlowFile createFlowFile,
         @Advice.Argument(0) Collection<FlowFile> inputFlowFiles
     ) {
-      ProcessSessionSingletons.startMergeFilesSpan(session, inputFlowFiles,
-          createFlowFile);
+      if (!ActiveConnectableSaver.isDisabled()) {
+        ProcessSessionSingletons.startMergeFilesSpan(session, inputFlowFiles, createFlowFile);
+      }
     }
   }
 
@@ -150,6 +206,9 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.Argument(value = 0, readOnly = false) FlowFile flowFile,
         @Advice.This ProcessSession processSession
     ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return;
+      }
       flowFile = ProcessSessionSingletons.handleTransferFlowFile(
           flowFile,
           Relationship.SELF,
@@ -167,6 +226,9 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.Argument(value = 1) Relationship relationship,
         @Advice.This ProcessSession processSession
     ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return;
+      }
       flowFile = ProcessSessionSingletons.handleTransferFlowFile(
           flowFile,
           relationship,
@@ -184,6 +246,9 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
         @Advice.Argument(value = 1) Relationship relationship,
         @Advice.This ProcessSession processSession
     ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return;
+      }
       flowFiles = ProcessSessionSingletons.handleTransferFlowFiles(
           flowFiles,
           relationship,
@@ -218,4 +283,257 @@ public class NiFiProcessSessionInstrumentation implements TypeInstrumentation {
       );
     }
   }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessRollbackAdvice {
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(@Advice.This ProcessSession session) {
+      ProcessSpanTracker.rollback(session);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessRemoveAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile
+    ) {
+      ProcessSpanTracker.remove(session, flowFile);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessRemoveListAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) Collection<FlowFile> flowFiles
+    ) {
+      ProcessSpanTracker.remove(session, flowFiles);
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessDequeueAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Argument(1) Connection connection
+    ) {
+      if (!ActiveConnectableSaver.isDisabled()) {
+        QueueLatency.recordDequeued(flowFile, connection);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessReadAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static ContentIo.CountingCallback onEnter(
+        @Advice.Argument(value = 1, readOnly = false) InputStreamCallback callback
+    ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return null;
+      }
+      ContentIo.CountingCallback counting = ContentIo.CountingCallback.wrap(callback);
+      callback = counting;
+      return counting;
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Enter ContentIo.CountingCallback counting
+    ) {
+      if (counting != null) {
+        ContentIo.recordRead(session, flowFile, counting.count(), counting.readNanos());
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessStreamWriteAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static ContentIo.CountingCallback onEnter(
+        @Advice.Argument(value = 1, readOnly = false) StreamCallback callback
+    ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return null;
+      }
+      ContentIo.CountingCallback counting = ContentIo.CountingCallback.wrap(callback);
+      callback = counting;
+      return counting;
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Return FlowFile written,
+        @Advice.Enter ContentIo.CountingCallback counting
+    ) {
+      if (counting != null && written != null) {
+        ContentIo.recordRewrite(session, written, counting, written.getSize());
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessWriteAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static ContentIo.CountingCallback onEnter(
+        @Advice.Argument(value = 1, readOnly = false) OutputStreamCallback callback
+    ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return null;
+      }
+      ContentIo.CountingCallback counting = ContentIo.CountingCallback.wrap(callback);
+      callback = counting;
+      return counting;
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Return FlowFile written,
+        @Advice.Enter ContentIo.CountingCallback counting
+    ) {
+      if (counting != null && written != null) {
+        ContentIo.recordWrite(session, written, written.getSize(), counting.writeNanos());
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessAppendAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static ContentIo.CountingCallback onEnter(
+        @Advice.Argument(value = 1, readOnly = false) OutputStreamCallback callback
+    ) {
+      if (ActiveConnectableSaver.isDisabled()) {
+        return null;
+      }
+      ContentIo.CountingCallback counting = ContentIo.CountingCallback.wrap(callback);
+      callback = counting;
+      return counting;
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Return FlowFile appended,
+        @Advice.Enter ContentIo.CountingCallback counting
+    ) {
+      if (counting != null && appended != null) {
+        // only the appended bytes were written
+        ContentIo.recordWrite(session, appended, appended.getSize() - flowFile.getSize(),
+            counting.writeNanos());
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessReadStreamAdvice {
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Return(readOnly = false) InputStream stream
+    ) {
+      if (!ActiveConnectableSaver.isDisabled()) {
+        stream = ContentIo.countReads(session, flowFile, stream);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessWriteStreamAdvice {
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Return(readOnly = false) OutputStream stream
+    ) {
+      if (!ActiveConnectableSaver.isDisabled()) {
+        stream = ContentIo.countWrites(session, flowFile, stream);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessImportAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static long onEnter() {
+      return System.nanoTime();
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Return FlowFile imported,
+        @Advice.Enter long startNanos
+    ) {
+      if (imported != null && !ActiveConnectableSaver.isDisabled()) {
+        ContentIo.recordWrite(
+            session, imported, imported.getSize(), System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessExportAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static long onEnter() {
+      return System.nanoTime();
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Argument(0) FlowFile flowFile,
+        @Advice.Enter long startNanos
+    ) {
+      if (!ActiveConnectableSaver.isDisabled()) {
+        ContentIo.recordRead(
+            session, flowFile, flowFile.getSize(), System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  @SuppressWarnings("unused")
+  public static class NiFiProcessMergeContentAdvice {
+
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static long onEnter() {
+      return System.nanoTime();
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void onExit(
+        @Advice.This ProcessSession session,
+        @Advice.Return FlowFile merged,
+        @Advice.Enter long startNanos
+    ) {
+      if (merged != null && !ActiveConnectableSaver.isDisabled()) {
+        ContentIo.recordWrite(
+            session, merged, merged.getSize(), System.nanoTime() - startNanos);
+      }
+    }
+  }
 }
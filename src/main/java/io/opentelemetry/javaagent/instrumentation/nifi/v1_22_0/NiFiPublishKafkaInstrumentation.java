@@ -0,0 +1,53 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.javaagent.extension.instrumentation.TypeInstrumentation;
+import io.opentelemetry.javaagent.extension.instrumentation.TypeTransformer;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+
+import static io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers.hasClassesNamed;
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Instrumenting Nifi PublishKafka processors, exposing their session to the publisher lease
+ */
+public class NiFiPublishKafkaInstrumentation implements TypeInstrumentation {
+  @Override
+  public ElementMatcher<ClassLoader> classLoaderOptimization() {
+    return hasClassesNamed("org.apache.nifi.processors.kafka.pubsub.PublisherLease");
+  }
+
+  @Override
+  public ElementMatcher<TypeDescription> typeMatcher() {
+    // PublishKafka and PublishKafkaRecord of every Kafka client version
+    return nameStartsWith("org.apache.nifi.processors.kafka.pubsub.PublishKafka");
+  }
+
+  @Override
+  public void transform(TypeTransformer typeTransformer) {
+    typeTransformer.applyAdviceToMethod(namedOneOf("onTrigger")
+            .and(takesArguments(ProcessContext.class, ProcessSession.class)),
+        NiFiPublishKafkaInstrumentation.class.getName() + "$OnTriggerAdvice");
+  }
+
+  @SuppressWarnings("unused")
+  public static class OnTriggerAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void onEnter(@Advice.Argument(1) ProcessSession session) {
+      PublisherLeaseSingletons.setSession(session);
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit() {
+      PublisherLeaseSingletons.clearSession();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.javaagent.extension.instrumentation.TypeInstrumentation;
+import io.opentelemetry.javaagent.extension.instrumentation.TypeTransformer;
+import io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.apache.nifi.flowfile.FlowFile;
+
+import static io.opentelemetry.javaagent.extension.matcher.AgentElementMatchers.hasClassesNamed;
+import static net.bytebuddy.matcher.ElementMatchers.*;
+
+/**
+ * Instrumenting Nifi Kafka publisher lease, delimiting the records sent for a FlowFile
+ */
+public class NiFiPublisherLeaseInstrumentation implements TypeInstrumentation {
+  @Override
+  public ElementMatcher<ClassLoader> classLoaderOptimization() {
+    return hasClassesNamed("org.apache.nifi.processors.kafka.pubsub.PublisherLease");
+  }
+
+  @Override
+  public ElementMatcher<TypeDescription> typeMatcher() {
+    return AgentElementMatchers.hasSuperType(
+        namedOneOf("org.apache.nifi.processors.kafka.pubsub.PublisherLease"));
+  }
+
+  @Override
+  public void transform(TypeTransformer typeTransformer) {
+    // demarcated content and record set variants, both send every record of the FlowFile
+    typeTransformer.applyAdviceToMethod(namedOneOf("publish")
+            .and(takesArgument(0, FlowFile.class))
+            .and(isPublic()),
+        NiFiPublisherLeaseInstrumentation.class.getName() + "$PublishAdvice");
+  }
+
+  @SuppressWarnings("unused")
+  public static class PublishAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static boolean onEnter(@Advice.Argument(0) FlowFile flowFile) {
+      return PublisherLeaseSingletons.startPublish(flowFile);
+    }
+
+    @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
+    public static void onExit(@Advice.Enter boolean started) {
+      if (started) {
+        PublisherLeaseSingletons.endPublish();
+      }
+    }
+  }
+}
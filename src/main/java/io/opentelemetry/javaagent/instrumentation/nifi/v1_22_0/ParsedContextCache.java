@@ -0,0 +1,147 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extraction through the global propagator, with the span contexts parsed from raw traceparent and
+ * tracestate values cached. Siblings of a split carry the very same values, so they are parsed
+ * once.
+ *
+ * The cache only answers when the carrier has no propagation field other than traceparent and
+ * tracestate, otherwise the full extraction runs so baggage or other formats are never lost. It is
+ * bounded by two generations: once the current one is full it becomes the old one, and entries
+ * still used are copied back on their next hit.
+ */
+public final class ParsedContextCache {
+  static final String TRACESTATE = "tracestate";
+
+  static final int maxSize = InstrumentationConfig.get().getInt(
+      "otel.instrumentation.nifi.context-cache-size",
+      4096
+  );
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  static final LongCounter hits = meter.counterBuilder("nifi.context_cache.hits")
+      .setDescription("Propagated contexts served from the parsed context cache")
+      .setUnit("{context}")
+      .build();
+  static final LongCounter misses = meter.counterBuilder("nifi.context_cache.misses")
+      .setDescription("Propagated contexts parsed because they were not cached")
+      .setUnit("{context}")
+      .build();
+
+  private static volatile ConcurrentHashMap<String, SpanContext> current =
+      new ConcurrentHashMap<>();
+  private static volatile ConcurrentHashMap<String, SpanContext> previous =
+      new ConcurrentHashMap<>();
+
+  // recomputed if the global propagator is replaced
+  private static volatile PropagatorFields propagatorFields;
+
+  private ParsedContextCache() {}
+
+  public static <C> Context extract(Context context, C carrier, TextMapGetter<C> getter) {
+    TextMapPropagator propagator = GlobalOpenTelemetry.getPropagators().getTextMapPropagator();
+    String[] fields = maxSize > 0 ? otherFields(propagator) : null;
+    if (fields == null) {
+      return propagator.extract(context, carrier, getter);
+    }
+    for (String field : fields) {
+      if (getter.get(carrier, field) != null) {
+        return propagator.extract(context, carrier, getter);
+      }
+    }
+    String traceparent = getter.get(carrier, FlowFileAttributesTextMapGetter.TRACEPARENT);
+    if (traceparent == null) {
+      return propagator.extract(context, carrier, getter);
+    }
+    String tracestate = getter.get(carrier, TRACESTATE);
+    String key = tracestate == null ? traceparent : traceparent + '\n' + tracestate;
+
+    SpanContext spanContext = get(key);
+    if (spanContext != null) {
+      hits.add(1);
+      return context.with(Span.wrap(spanContext));
+    }
+    misses.add(1);
+    Context extracted = propagator.extract(context, carrier, getter);
+    spanContext = Span.fromContext(extracted).getSpanContext();
+    if (spanContext.isValid() && spanContext.isRemote()) {
+      put(key, spanContext);
+    }
+    return extracted;
+  }
+
+  private static SpanContext get(String key) {
+    SpanContext spanContext = current.get(key);
+    if (spanContext == null) {
+      spanContext = previous.get(key);
+      if (spanContext != null) {
+        put(key, spanContext);
+      }
+    }
+    return spanContext;
+  }
+
+  private static void put(String key, SpanContext spanContext) {
+    ConcurrentHashMap<String, SpanContext> generation = current;
+    if (generation.size() >= maxSize / 2) {
+      synchronized (ParsedContextCache.class) {
+        if (current == generation) {
+          previous = generation;
+          current = new ConcurrentHashMap<>();
+        }
+        generation = current;
+      }
+    }
+    generation.put(key, spanContext);
+  }
+
+  /**
+   * @return the fields of the propagator besides the W3C trace context ones, or null if it does
+   *     not propagate the W3C trace context
+   */
+  static String[] otherFields(TextMapPropagator propagator) {
+    PropagatorFields fields = propagatorFields;
+    if (fields == null || fields.propagator != propagator) {
+      fields = new PropagatorFields(propagator);
+      propagatorFields = fields;
+    }
+    return fields.others;
+  }
+
+  private static final class PropagatorFields {
+    final TextMapPropagator propagator;
+    final String[] others;
+
+    PropagatorFields(TextMapPropagator propagator) {
+      this.propagator = propagator;
+      Collection<String> fields = propagator.fields();
+      if (!fields.contains(FlowFileAttributesTextMapGetter.TRACEPARENT)) {
+        this.others = null;
+        return;
+      }
+      List<String> others = new ArrayList<>();
+      for (String field : fields) {
+        if (!field.equals(FlowFileAttributesTextMapGetter.TRACEPARENT)
+            && !field.equals(TRACESTATE)) {
+          others.add(field);
+        }
+      }
+      this.others = others.toArray(new String[0]);
+    }
+  }
+}
@@ -3,72 +3,155 @@ package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
 import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
 import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.context.propagation.TextMapSetter;
 import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
 import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+import org.apache.nifi.connectable.Connection;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 
+import javax.annotation.Nullable;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public final class ProcessSessionSingletons {
   private static final Logger logger =
       Logger.getLogger(ProcessSessionSingletons.class.getName());
+  private static final RateLimitedLogger missingSpanLogger =
+      new RateLimitedLogger(logger, Level.WARNING, "No active span for flow file found");
   static Tracer tracer = GlobalOpenTelemetry.getTracer("nifi");
-  static List<String> externalPropagationProcessors = InstrumentationConfig.get().getList(
+  static Set<String> externalPropagationProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
           "otel.instrumentation.nifi.external-propagation-processors",
           Collections.singletonList("GetWMQ")
-        );
+      ));
 
-  static List<String> useLinksProcessors = InstrumentationConfig.get().getList(
+  static Set<String> useLinksProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
           "otel.instrumentation.nifi.use-links-processors",
           Collections.emptyList()
-  );
+      ));
 
   static List<String> externalPropagationThreadPrefixes = InstrumentationConfig.get().getList(
           "otel.instrumentation.nifi.external-propagation-thread-prefixes",
           Collections.singletonList("ListenHTTP")
   );
 
+  static Set<String> batchSpanProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.batch-span-processors",
+          Collections.emptyList()
+      ));
+
+  static Set<String> fanOutProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.fan-out-processors",
+          Collections.emptyList()
+      ));
+
+  static Set<String> sessionSpanProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.session-span-processors",
+          Collections.emptyList()
+      ));
+
+  static int mergeSpanMaxLinks = InstrumentationConfig.get().getInt(
+          "otel.instrumentation.nifi.merge-span-max-links",
+          128
+  );
+
+  static Set<String> includedComponents = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.components.include",
+          Collections.emptyList()
+      ));
+
+  static Set<String> excludedComponents = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.components.exclude",
+          Collections.emptyList()
+      ));
+
+  static int batchSpanMaxLinks = InstrumentationConfig.get().getInt(
+          "otel.instrumentation.nifi.batch-span-max-links",
+          128
+  );
+
+  static boolean compactPropagation = InstrumentationConfig.get().getBoolean(
+          "otel.instrumentation.nifi.propagation.compact",
+          false
+  );
+
+  static Set<String> w3cGatewayProcessors = new HashSet<>(
+      InstrumentationConfig.get().getList(
+          "otel.instrumentation.nifi.propagation.w3c-gateway-processors",
+          Collections.emptyList()
+      ));
+
+  static boolean scopeFree = InstrumentationConfig.get().getBoolean(
+          "otel.instrumentation.nifi.scope-free",
+          false
+  );
+
+  static AttributeCapturePolicy attributeCapturePolicy =
+      AttributeCapturePolicy.create(InstrumentationConfig.get());
+
   private ProcessSessionSingletons() {}
 
   private static SpanBuilder createSpanBuilder() {
     ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
-    if (pConfig.processContext != null && pConfig.connectable != null) {
-      return tracer.spanBuilder(
-              pConfig.connectable.getComponentType() + ":" + pConfig.processContext.getName())
-          .setAttribute("nifi.component.name", pConfig.processContext.getName())
-          .setAttribute("nifi.component.type", pConfig.connectable.getComponentType())
-          .setAttribute("nifi.processgroup.name", pConfig.connectable.getProcessGroup().getName())
-          .setAttribute("nifi.component.id", pConfig.connectable.getIdentifier());
-    } else {
-      for (String prefix: externalPropagationThreadPrefixes) {
-        if (Thread.currentThread().getName().startsWith(prefix)) {
-          return tracer.spanBuilder(prefix);
-        }
-      }
+    if (pConfig.profile != null) {
+      return tracer.spanBuilder(pConfig.profile.spanName)
+          .setAllAttributes(pConfig.profile.attributes);
+    }
+    String threadPrefix = pConfig.threadPrefix();
+    if (threadPrefix != null) {
+      return tracer.spanBuilder(threadPrefix);
     }
     return tracer.spanBuilder("Handle Flow File");
   }
 
+  private static FlowFileSampler getSampler() {
+    ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
+    if (pConfig.profile == null) {
+      return FlowFileSampler.ALWAYS;
+    }
+    return pConfig.profile.sampler;
+  }
+
+  /**
+   * Makes a new FlowFile span current. In scope free mode the span is only remembered for the
+   * onTrigger, and no context is made current per FlowFile. Outside of onTrigger no scope is opened either,
+   * nothing would close it once the thread moves on to other work
+   */
+  @Nullable
+  private static Scope activate(Span span) {
+    if (scopeFree) {
+      ActiveConnectableSaver.activate(span);
+      return null;
+    }
+    if (!ActiveConnectableSaver.inTrigger()) {
+      return null;
+    }
+    ActiveConnectableSaver.closeEndedScopes();
+    return span.makeCurrent();
+  }
+
   public static Context getDefaultContext() {
     ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
-    if (pConfig.connectable != null) {
-      if (externalPropagationProcessors.contains(pConfig.connectable.getComponentType())) {
+    if (pConfig.profile != null) {
+      if (pConfig.profile.externalPropagation) {
         return Java8BytecodeBridge.currentContext();
       }
-    } else {
-      for (String prefix: externalPropagationThreadPrefixes) {
-        if (Thread.currentThread().getName().startsWith(prefix)) {
-          return Java8BytecodeBridge.currentContext();
-        }
-      }
+    } else if (pConfig.threadPrefix() != null) {
+      return Java8BytecodeBridge.currentContext();
     }
 
     return Java8BytecodeBridge.rootContext();
@@ -76,54 +159,218 @@ public final class ProcessSessionSingletons {
 
 
   public static void startFileHandlingSpan(ProcessSession session, FlowFile flowFile) {
+    RecordBundles recordBundles = ExternalContextTracker.getRecordBundles(session);
+    if (recordBundles != null && recordBundles.isWriting()) {
+      startRecordBundleSpan(session, flowFile, recordBundles);
+      return;
+    }
     // if no external context was found, use root context since current context may be spam
     Context externalContext = ExternalContextTracker.pop(session, getDefaultContext());
-    Context extractedContext = GlobalOpenTelemetry.getPropagators()
-        .getTextMapPropagator()
-        .extract(
-            externalContext,
-            // using root context because we want only the extracted context if exists
-            flowFile.getAttributes(),
-            FlowFileAttributesTextMapGetter.INSTANCE
-        );
+    Context extractedContext = ParsedContextCache.extract(
+        externalContext,
+        flowFile.getAttributes(),
+        FlowFileAttributesTextMapGetter.INSTANCE
+    );
+    SpanContext parentSpanContext = Span.fromContext(extractedContext).getSpanContext();
+    SessionSpan sessionSpan = SessionSpan.current();
+    if (sessionSpan != null) {
+      sessionSpan.addFlowFile(parentSpanContext);
+      ProcessSpanTracker.share(session, flowFile, sessionSpan.span).relationships =
+          sessionSpan.relationships;
+      return;
+    }
+    Span unsampled = unsampledSpan(parentSpanContext);
+    if (unsampled != null) {
+      ProcessSpanTracker.share(session, flowFile, unsampled);
+      return;
+    }
+    if (!SpanReaper.tryOpen()) {
+      // too many open spans, pass the incoming context through untouched
+      ProcessSpanTracker.share(session, flowFile, Span.fromContext(extractedContext));
+      return;
+    }
     Span span = createSpanBuilder()
         .setParent(extractedContext)
         .startSpan();
-    Scope scope = span.makeCurrent();
+    QueueLatency.setSpanAttributes(span, flowFile);
+    Scope scope = activate(span);
     ProcessSpanTracker.set(session, flowFile, span, scope);
   }
 
+  /**
+   * Takes the sampling decision of a new span: a child follows its parent, a new root goes through
+   * the sampler of the component
+   *
+   * @return the span to propagate downstream without recording anything, or null if the new span
+   *     is sampled
+   */
+  @Nullable
+  private static Span unsampledSpan(SpanContext parent) {
+    if (parent.isValid()) {
+      return parent.isSampled() ? null : Span.wrap(parent);
+    }
+    return getSampler().shouldSample() ? null : Span.wrap(FlowFileSampler.unsampledRootContext());
+  }
+
   public static void startFileHandlingSpan(
       ProcessSession session,
       Collection<FlowFile> flowFiles) {
+    ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
+    if (pConfig.profile != null && pConfig.profile.batchSpan && !pConfig.profile.sessionSpan) {
+      startBatchSpan(session, flowFiles);
+      return;
+    }
     for (FlowFile flowFile : flowFiles) {
       // in case of multiple files, only the last will be "active"
       startFileHandlingSpan(session, flowFile);
     }
   }
 
+  /**
+   * Opens a single span for a batch of FlowFiles, linked to their distinct parent contexts.
+   * Every FlowFile of the batch is tracked with this span, so it is the one injected on transfer.
+   */
+  public static void startBatchSpan(ProcessSession session, Collection<FlowFile> flowFiles) {
+    if (flowFiles.isEmpty()) {
+      return;
+    }
+    // the batch span is a new root, linked to the contexts of the FlowFiles
+    Span unsampled = unsampledSpan(SpanContext.getInvalid());
+    if (unsampled != null) {
+      for (FlowFile flowFile : flowFiles) {
+        ProcessSpanTracker.share(session, flowFile, unsampled);
+      }
+      return;
+    }
+    if (!SpanReaper.tryOpen()) {
+      for (FlowFile flowFile : flowFiles) {
+        ProcessSpanTracker.share(session, flowFile, Span.getInvalid());
+      }
+      return;
+    }
+    Context externalContext = ExternalContextTracker.pop(session, getDefaultContext());
+    LinkCollector links = new LinkCollector(batchSpanMaxLinks);
+    links.add(Span.fromContext(externalContext).getSpanContext());
+    for (FlowFile flowFile : flowFiles) {
+      Context parentContext = ParsedContextCache.extract(
+          // using root context because we want only the extracted context if exists
+          Java8BytecodeBridge.rootContext(),
+          flowFile.getAttributes(),
+          FlowFileAttributesTextMapGetter.INSTANCE
+      );
+      // once the cap is reached there is no point extracting the rest of the batch
+      if (!links.add(Span.fromContext(parentContext).getSpanContext())) {
+        break;
+      }
+    }
+
+    Span span = links.addTo(createSpanBuilder())
+        .setNoParent()
+        .setAttribute("nifi.batch.size", flowFiles.size())
+        .setAttribute("nifi.batch.links.truncated", links.isTruncated())
+        .startSpan();
+    Scope scope = activate(span);
+    RelationshipCounts relationships = new RelationshipCounts();
+    boolean first = true;
+    for (FlowFile flowFile : flowFiles) {
+      if (first) {
+        ProcessSpanTracker.set(session, flowFile, span, scope).relationships = relationships;
+        first = false;
+      } else {
+        ProcessSpanTracker.share(session, flowFile, span).relationships = relationships;
+      }
+    }
+  }
+
+  /**
+   * Opens the span of a FlowFile bundling several consumed records, linked to their contexts.
+   * Records appended by later polls are linked while the span is open, the dropped links are
+   * recorded when it ends
+   */
+  private static void startRecordBundleSpan(
+      ProcessSession session,
+      FlowFile flowFile,
+      RecordBundles recordBundles
+  ) {
+    Context parentContext = getDefaultContext();
+    Span unsampled = unsampledSpan(Span.fromContext(parentContext).getSpanContext());
+    if (unsampled != null) {
+      ProcessSpanTracker.share(session, flowFile, unsampled);
+      return;
+    }
+    if (!SpanReaper.tryOpen()) {
+      ProcessSpanTracker.share(session, flowFile, Span.getInvalid());
+      return;
+    }
+    LinkCollector links = recordBundles.newBundleLinks();
+    Span span = links.addTo(createSpanBuilder())
+        .setParent(parentContext)
+        .startSpan();
+    Scope scope = activate(span);
+    FlowFileSpan entry = ProcessSpanTracker.set(session, flowFile, span, scope);
+    entry.links = links;
+    recordBundles.opened(entry);
+  }
+
   /**
    * Creates a link to parents instead of setting as direct parent, allowing more then one parent.
+   * Parents are deduplicated and capped, the ones beyond the cap are summarized per trace.
    */
   public static void startMergeFilesSpan(
       ProcessSession session,
       Collection<FlowFile> inputFlowFiles,
       FlowFile outputFlowFile
   ) {
+    SessionSpan sessionSpan = SessionSpan.current();
+    if (sessionSpan != null) {
+      // the inputs already joined the session when they were read
+      sessionSpan.addFlowFile(SpanContext.getInvalid());
+      ProcessSpanTracker.share(session, outputFlowFile, sessionSpan.span).relationships =
+          sessionSpan.relationships;
+      return;
+    }
+    // the merge span is a new root, linked to the contexts of the inputs
+    Span unsampled = unsampledSpan(SpanContext.getInvalid());
+    if (unsampled != null) {
+      ProcessSpanTracker.share(session, outputFlowFile, unsampled);
+      return;
+    }
+    if (!SpanReaper.tryOpen()) {
+      ProcessSpanTracker.share(session, outputFlowFile, Span.getInvalid());
+      return;
+    }
 
-    SpanBuilder spanBuilder = createSpanBuilder();
-    List<Context> parentContexts = inputFlowFiles.stream()
-        .map(flowFile -> GlobalOpenTelemetry.getPropagators()
-            .getTextMapPropagator()
-            .extract(Java8BytecodeBridge.currentContext(), flowFile.getAttributes(),
-                FlowFileAttributesTextMapGetter.INSTANCE)).collect(Collectors.toList());
-
-    for (Context context : parentContexts) {
-      spanBuilder.addLink(Span.fromContext(context).getSpanContext());
+    LinkCollector links = new LinkCollector(mergeSpanMaxLinks);
+    String previousValue = null;
+    SpanContext previousContext = SpanContext.getInvalid();
+    for (FlowFile flowFile : inputFlowFiles) {
+      Map<String, String> attributes = flowFile.getAttributes();
+      // inputs of a bin mostly come from the same few parents, skip re-extracting them
+      String value = attributes.get(CompactTraceContext.ATTRIBUTE);
+      if (value == null) {
+        value = attributes.get(FlowFileAttributesTextMapGetter.TRACEPARENT);
+      }
+      if (value == null || !value.equals(previousValue)) {
+        previousValue = value;
+        Context parentContext = ParsedContextCache.extract(
+            // using root context because we want only the extracted context if exists
+            Java8BytecodeBridge.rootContext(),
+            attributes,
+            FlowFileAttributesTextMapGetter.INSTANCE
+        );
+        previousContext = Span.fromContext(parentContext).getSpanContext();
+      }
+      // every input counts, the overflow per trace included
+      links.addOrCount(previousContext);
     }
 
-    Span span = spanBuilder.setNoParent().startSpan();
-    Scope scope = span.makeCurrent();
+    Span span = links.addTo(createSpanBuilder())
+        .setNoParent()
+        .setAttribute("nifi.merge.inputs", inputFlowFiles.size())
+        .setAttribute("nifi.links.dropped", links.dropped())
+        .startSpan();
+    links.addOverflowTo(span);
+    Scope scope = activate(span);
     ProcessSpanTracker.set(session, outputFlowFile, span, scope);
   }
 
@@ -133,15 +380,23 @@ public final class ProcessSessionSingletons {
           FlowFile createdFile
   ) {
     ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
-    if (useLinksProcessors.contains(pConfig.connectable.getComponentType())) {
+    if (pConfig.profile != null && (pConfig.profile.sessionSpan || pConfig.profile.useLinks)) {
       startMergeFilesSpan(session, Collections.singletonList(inputFile), createdFile);
+    } else if (pConfig.profile != null && pConfig.profile.fanOut) {
+      FlowFileSpan parent = ProcessSpanTracker.get(session, inputFile);
+      if (parent != null) {
+        // the child propagates the span of its parent
+        ProcessSpanTracker.shareFanOut(session, parent, createdFile);
+      } else {
+        startFileHandlingSpan(session, createdFile);
+      }
     } else {
       startFileHandlingSpan(session, createdFile);
     }
   }
 
   /**
-   * 1. Injects span context to flow file, creates new file
+   * 1. Injects span context to flow file, creates new file only if the context changed
    * 2. records attributes to span
    */
   public static FlowFile handleTransferFlowFile(
@@ -150,21 +405,85 @@ public final class ProcessSessionSingletons {
       ProcessSession processSession
   ) {
 
-    Span span = ProcessSpanTracker.getSpan(processSession, flowFile);
-    if (span == null) {
-      logger.warning("No active span for flow file found");
+    ProcessorMetrics.recordTransfer(ActiveConnectableSaver.profile(), relationship.getName());
+    FlowFileSpanRegistry registry = ProcessSpanTracker.getRegistry(processSession);
+    FlowFileSpan entry = registry == null ? null : registry.get(flowFile.getId());
+    if (entry == null) {
+      missingSpanLogger.log();
       return flowFile;
     }
-    for (Map.Entry<String, String> entry : flowFile.getAttributes().entrySet()) {
-      span.setAttribute("nifi.attributes." + entry.getKey(), entry.getValue());
+    Span span = entry.span;
+    if (entry.fanOutChild) {
+      // children of a fan-out only contribute to the stats of the shared span
+      entry.fanOut.childTransferred(flowFile.getSize());
+    } else {
+      if (entry.relationships != null) {
+        entry.relationships.transferred(relationship.getName());
+      }
+      // a span shared by several FlowFiles only records the attributes of the one owning it
+      if (entry.ownsSpan && span.isRecording()) {
+        AsyncEnrichment.capture(
+            span, entry.initialAttributes, flowFile.getAttributes(), relationship.getName());
+      }
     }
-    span.setAttribute("nifi.relationship.target", relationship.getName());
-    Map<String, String> carrier = new HashMap<>();
+    Map<String, String> carrier = registry.carrier();
     TextMapSetter<Map<String, String>> setter = FlowFileAttributesTextMapSetter.INSTANCE;
     GlobalOpenTelemetry.getPropagators()
         .getTextMapPropagator()
         .inject(Java8BytecodeBridge.currentContext().with(span), carrier, setter);
-    return processSession.putAllAttributes(flowFile, carrier);
+    // an invalid span, like one over the open span cap, passes on the context as it arrived
+    if (compactPropagation
+        && span.getSpanContext().isValid()
+        && !isLeavingThroughGateway(relationship)) {
+      carrier.put(CompactTraceContext.ATTRIBUTE,
+          CompactTraceContext.encode(span.getSpanContext()));
+      carrier.remove(FlowFileAttributesTextMapGetter.TRACEPARENT);
+    }
+    if (carrier.containsKey(FlowFileAttributesTextMapGetter.TRACEPARENT)
+        && flowFile.getAttribute(CompactTraceContext.ATTRIBUTE) != null) {
+      // an older compact context would take precedence over the traceparent written now, and
+      // over one a gateway processor may write later
+      flowFile = processSession.removeAttribute(flowFile, CompactTraceContext.ATTRIBUTE);
+    }
+    try {
+      // same context as already propagated, avoid a new FlowFile record and repository update
+      if (hasAttributes(flowFile, carrier)) {
+        return flowFile;
+      }
+      // the session copies the attributes into the new FlowFile record, the carrier is not retained
+      return processSession.putAllAttributes(flowFile, carrier);
+    } finally {
+      carrier.clear();
+    }
+  }
+
+  /**
+   * true if the relationship leads to a processor that sends the FlowFile out of NiFi, where the
+   * standard W3C attributes are needed instead of the compact one
+   */
+  private static boolean isLeavingThroughGateway(Relationship relationship) {
+    if (w3cGatewayProcessors.isEmpty()) {
+      return false;
+    }
+    ActiveConnectableConfig pConfig = ActiveConnectableSaver.get();
+    if (pConfig.connectable == null) {
+      return false;
+    }
+    for (Connection connection : pConfig.connectable.getConnections(relationship)) {
+      if (ConnectableProfile.get(connection.getDestination()).w3cGateway) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasAttributes(FlowFile flowFile, Map<String, String> attributes) {
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      if (!attribute.getValue().equals(flowFile.getAttribute(attribute.getKey()))) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public static List<FlowFile> handleTransferFlowFiles(
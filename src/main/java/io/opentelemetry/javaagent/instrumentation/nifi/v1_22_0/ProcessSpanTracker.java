@@ -4,88 +4,184 @@ import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.instrumentation.api.util.VirtualField;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.ProcessSession;
 
 import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Logger;
+import java.util.Map;
 
 
 public class ProcessSpanTracker {
-  public static final String SPAN_SUFFIX = "-span";
-  public static final String SCOPE_SUFFIX = "-scope";
-  private static final VirtualField<ProcessSession, ConcurrentHashMap<String, Object>> processMap =
-      VirtualField.find(ProcessSession.class, ConcurrentHashMap.class);
-  private static final Logger logger = Logger.getLogger(ProcessSpanTracker.class.getName());
+  private static final VirtualField<ProcessSession, FlowFileSpanRegistry> registryField =
+      VirtualField.find(ProcessSession.class, FlowFileSpanRegistry.class);
+  // a thread handles one session at a time, so a single pooled registry per thread is enough
+  private static final ThreadLocal<FlowFileSpanRegistry> registryPool = new ThreadLocal<>();
 
 
   private ProcessSpanTracker() {}
 
-  public static void set(ProcessSession session, FlowFile file, Span span, Scope scope) {
-    String id = file.getAttribute(CoreAttributes.UUID.key());
-    ConcurrentHashMap<String, Object> map = getOrCreateMap(session);
-    map.put(genSpanKey(id), span);
-    map.put(genScopeKey(id), scope);
+  public static FlowFileSpan set(ProcessSession session, FlowFile file, Span span, Scope scope) {
+    return track(session, new FlowFileSpan(file.getId(), span, scope, true,
+        ActiveConnectableSaver.profile(), initialAttributes(file)));
   }
 
-  private static String genSpanKey(String id) {
-    return id + SPAN_SUFFIX;
+  /**
+   * Tracks a span not owned by this FlowFile, either owned by another FlowFile of the session or a
+   * propagation only span, it is not ended through this FlowFile
+   */
+  public static FlowFileSpan share(ProcessSession session, FlowFile file, Span span) {
+    return track(session, new FlowFileSpan(file.getId(), span, null, false,
+        ActiveConnectableSaver.profile(), initialAttributes(file)));
   }
 
-  private static String genScopeKey(String id) {
-    return id + SCOPE_SUFFIX;
+  /**
+   * Tracks a child of a fan-out with the span of its parent, counted in the parent's stats
+   */
+  public static void shareFanOut(ProcessSession session, FlowFileSpan parent, FlowFile child) {
+    if (parent.fanOut == null) {
+      // a parent sharing its span, like a member of a batch, counts in the stats of the owner
+      FlowFileSpan owner = parent.ownsSpan ? parent : owner(session, parent.span);
+      if (owner != null && owner.fanOut != null) {
+        parent.fanOut = owner.fanOut;
+      } else {
+        parent.fanOut = new FanOutStats();
+        if (owner != null) {
+          owner.fanOut = parent.fanOut;
+        }
+      }
+    }
+    parent.fanOut.childCreated();
+    FlowFileSpan entry = new FlowFileSpan(child.getId(), parent.span, null, false,
+        ActiveConnectableSaver.profile(), null);
+    entry.fanOut = parent.fanOut;
+    entry.fanOutChild = true;
+    track(session, entry);
   }
 
-  private static ConcurrentHashMap<String, Object> getOrCreateMap(
-      ProcessSession session
-  ) {
-    ConcurrentHashMap<String, Object> map = processMap.get(session);
-    if (map == null) {
-      map = new ConcurrentHashMap<>();
-      processMap.set(session, map);
+  private static FlowFileSpan owner(ProcessSession session, Span span) {
+    FlowFileSpanRegistry registry = registryField.get(session);
+    if (registry == null) {
+      return null;
+    }
+    for (FlowFileSpan entry = registry.oldest(); entry != null; entry = entry.next) {
+      if (entry.ownsSpan && entry.span == span) {
+        return entry;
+      }
     }
-    return map;
+    return null;
+  }
+
+  private static Map<String, String> initialAttributes(FlowFile file) {
+    return ProcessSessionSingletons.attributeCapturePolicy.diff ? file.getAttributes() : null;
+  }
+
+  private static FlowFileSpan track(ProcessSession session, FlowFileSpan entry) {
+    if (entry.scope != null) {
+      ActiveConnectableSaver.scopeOpened(entry);
+    }
+    FlowFileSpan replaced = getOrCreateRegistry(session).put(entry);
+    if (replaced != null) {
+      // the FlowFile got a new span in the same session, don't leak the previous one
+      replaced.end();
+    }
+    return entry;
+  }
+
+  private static FlowFileSpanRegistry getOrCreateRegistry(ProcessSession session) {
+    FlowFileSpanRegistry registry = registryField.get(session);
+    if (registry == null) {
+      registry = registryPool.get();
+      if (registry == null) {
+        registry = new FlowFileSpanRegistry();
+      } else {
+        registryPool.set(null);
+      }
+      registry.registration = SpanReaper.register(session, registry);
+      registryField.set(session, registry);
+    }
+    return registry;
+  }
+
+  /**
+   * @return the registry of the session, or null if no FlowFile span was tracked yet
+   */
+  public static FlowFileSpanRegistry getRegistry(ProcessSession session) {
+    return registryField.get(session);
+  }
+
+  public static FlowFileSpan get(ProcessSession session, FlowFile file) {
+    FlowFileSpanRegistry registry = registryField.get(session);
+    if (registry == null) {
+      return null;
+    }
+    return registry.get(file.getId());
   }
 
   public static Span getSpan(ProcessSession session, FlowFile file) {
-    String id = file.getAttribute(CoreAttributes.UUID.key());
-    ConcurrentHashMap<String, Object> map = getOrCreateMap(session);
-    Object value = map.get(genSpanKey(id));
-    if (!(value instanceof Span)) {
-      logger.warning("trying to get non Span value: " + value);
+    FlowFileSpan entry = get(session, file);
+    if (entry == null) {
       return null;
     }
-    return (Span) value;
+    return entry.span;
   }
 
+  /**
+   * Ends all spans of the session and returns its registry to the pool
+   */
   public static void close(ProcessSession session) {
-    ConcurrentHashMap<String, Object> map = getOrCreateMap(session);
-    map.values().forEach(value -> {
-      if (value instanceof Scope) {
-        ((Scope) value).close();
-      } else if (value instanceof Span) {
-        ((Span) value).end();
-      } else {
-        logger.warning("Got a non-scope/span value: " + value);
+    FlowFileSpanRegistry registry = registryField.get(session);
+    if (registry == null) {
+      return;
+    }
+    registryField.set(session, null);
+    SpanReaper.unregister(registry.registration);
+    registry.registration = null;
+    registry.endAll();
+    registryPool.set(registry);
+  }
+
+  /**
+   * Ends all spans of a rolled back session, marking them as such
+   */
+  public static void rollback(ProcessSession session) {
+    FlowFileSpanRegistry registry = registryField.get(session);
+    if (registry == null) {
+      return;
+    }
+    for (FlowFileSpan entry = registry.oldest(); entry != null; entry = entry.next) {
+      if (entry.ownsSpan) {
+        entry.span.setAttribute("nifi.session.rolled_back", true);
       }
-    });
-    map.clear();
+    }
+    close(session);
+  }
+
+  /**
+   * Marks the span of a FlowFile removed from the flow, it is ended with the session
+   */
+  public static void remove(ProcessSession session, FlowFile file) {
+    FlowFileSpan entry = get(session, file);
+    if (entry != null && entry.ownsSpan) {
+      entry.span.setAttribute("nifi.flowfile.removed", true);
+    }
+  }
+
+  public static void remove(ProcessSession session, Collection<FlowFile> files) {
+    for (FlowFile file : files) {
+      remove(session, file);
+    }
   }
 
   public static void migrate(ProcessSession oldSession, ProcessSession newSession,
       Collection<FlowFile> flowFiles) {
-    ConcurrentHashMap<String, Object> oldMap = getOrCreateMap(oldSession);
-    ConcurrentHashMap<String, Object> newMap = getOrCreateMap(newSession);
+    FlowFileSpanRegistry oldRegistry = registryField.get(oldSession);
+    if (oldRegistry == null || oldRegistry.isEmpty()) {
+      return;
+    }
+    FlowFileSpanRegistry newRegistry = getOrCreateRegistry(newSession);
     for (FlowFile file : flowFiles) {
-      String id = file.getAttribute(CoreAttributes.UUID.key());
-      String spanId = genSpanKey(id);
-      if (oldMap.containsKey(spanId)) {
-        newMap.put(spanId, oldMap.remove(spanId));
-      }
-      String scopeId = genScopeKey(id);
-      if (oldMap.containsKey(scopeId)) {
-        newMap.put(scopeId, oldMap.remove(scopeId));
+      FlowFileSpan entry = oldRegistry.remove(file.getId());
+      if (entry != null) {
+        newRegistry.put(entry);
       }
     }
   }
@@ -0,0 +1,59 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per component rate, errors and duration metrics, recorded from the FlowFile span lifecycle.
+ * They are recorded for every FlowFile, whether or not its span is sampled, with the attributes
+ * cached in the component's {@link ConnectableProfile}.
+ */
+public final class ProcessorMetrics {
+  static final boolean enabled = InstrumentationConfig.get().getBoolean(
+      "otel.instrumentation.nifi.metrics.enabled",
+      true
+  );
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final DoubleHistogram flowFileDuration =
+      meter.histogramBuilder("nifi.flowfile.duration")
+          .setDescription("Time from a FlowFile being read or created by a component until its "
+              + "session is committed or rolled back")
+          .setUnit("s")
+          .build();
+  private static final LongCounter transfers = meter.counterBuilder("nifi.flowfile.transfers")
+      .setDescription("FlowFiles transferred by a component, per relationship")
+      .setUnit("{flowfile}")
+      .build();
+  private static final LongCounter errors = meter.counterBuilder("nifi.component.errors")
+      .setDescription("Errors logged by a component")
+      .setUnit("{error}")
+      .build();
+
+  private ProcessorMetrics() {}
+
+  public static void recordDuration(ConnectableProfile profile, long durationNanos) {
+    if (enabled && profile != null && profile.enabled) {
+      flowFileDuration.record(durationNanos / NANOS_PER_SECOND, profile.metricAttributes);
+    }
+  }
+
+  public static void recordTransfer(ConnectableProfile profile, String relationship) {
+    if (enabled && profile != null && profile.enabled) {
+      transfers.add(1, profile.relationshipAttributes(relationship));
+    }
+  }
+
+  public static void recordError(ConnectableProfile profile) {
+    if (enabled && profile != null && profile.enabled) {
+      errors.add(1, profile.metricAttributes);
+    }
+  }
+}
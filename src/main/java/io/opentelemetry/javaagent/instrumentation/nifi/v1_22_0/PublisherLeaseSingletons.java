@@ -0,0 +1,142 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.javaagent.bootstrap.Java8BytecodeBridge;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Propagates the context of the published FlowFile to the records PublishKafka sends for it.
+ *
+ * The context is the span tracked for the FlowFile in the publishing session, or the context the
+ * FlowFile arrived with when it has none. It is injected once per FlowFile and kept as encoded
+ * header bytes, every record of the FlowFile (demarcated or record oriented) gets the same bytes.
+ * Consecutive FlowFiles sharing a span, like in a batch or session span, reuse them as well.
+ */
+public final class PublisherLeaseSingletons {
+  private static final ThreadLocal<PublishState> state = ThreadLocal.withInitial(PublishState::new);
+
+  private PublisherLeaseSingletons() {}
+
+  /**
+   * Remembers the session of the PublishKafka onTrigger, the publisher lease is not given it
+   */
+  public static void setSession(ProcessSession session) {
+    state.get().session = session;
+  }
+
+  public static void clearSession() {
+    PublishState publishState = state.get();
+    publishState.session = null;
+    publishState.span = null;
+  }
+
+  /**
+   * @return true if the publish of the FlowFile started, false for a nested publish call
+   */
+  public static boolean startPublish(FlowFile flowFile) {
+    PublishState publishState = state.get();
+    if (publishState.flowFile != null || flowFile == null) {
+      return false;
+    }
+    publishState.flowFile = flowFile;
+    publishState.encoded = false;
+    publishState.sent = 0;
+    publishState.topic = null;
+    return true;
+  }
+
+  public static void endPublish() {
+    PublishState publishState = state.get();
+    if (publishState.sent > 0) {
+      KafkaProducerMetrics.recordBatch(publishState.topic, publishState.sent);
+    }
+    publishState.flowFile = null;
+    publishState.topic = null;
+  }
+
+  /**
+   * Injects the context of the FlowFile being published into the record headers
+   *
+   * @return the callback to send the record with, timing the acknowledgement
+   */
+  public static Callback onSend(ProducerRecord<?, ?> record, Callback callback) {
+    PublishState publishState = state.get();
+    if (publishState.flowFile == null || record == null
+        || callback instanceof KafkaProducerMetrics.AckCallback) {
+      // not sent by a publisher lease, or already handled by a delegating producer
+      return callback;
+    }
+    if (!publishState.encoded) {
+      publishState.encode();
+    }
+    Headers headers = record.headers();
+    try {
+      for (int i = 0; i < publishState.fieldCount; i++) {
+        headers.remove(publishState.keys[i]).add(publishState.keys[i], publishState.values[i]);
+      }
+    } catch (IllegalStateException e) {
+      // headers of a record already sent are read only
+    }
+    publishState.sent++;
+    publishState.topic = record.topic();
+    return KafkaProducerMetrics.timeAck(record.topic(), callback);
+  }
+
+  private static final class PublishState {
+    ProcessSession session;
+    FlowFile flowFile;
+    boolean encoded;
+    int sent;
+    String topic;
+
+    // span the header bytes were encoded for, null if encoded from the FlowFile attributes
+    Span span;
+    final Map<String, String> carrier = new HashMap<>(4);
+    String[] keys = new String[0];
+    byte[][] values = new byte[0][];
+    int fieldCount;
+
+    void encode() {
+      encoded = true;
+      Span tracked = session == null ? null : ProcessSpanTracker.getSpan(session, flowFile);
+      if (tracked != null && tracked == span) {
+        return;
+      }
+      span = tracked;
+      Context context;
+      if (tracked != null) {
+        context = Java8BytecodeBridge.currentContext().with(tracked);
+      } else {
+        context = ParsedContextCache.extract(
+            Java8BytecodeBridge.rootContext(),
+            flowFile.getAttributes(),
+            FlowFileAttributesTextMapGetter.INSTANCE
+        );
+      }
+      carrier.clear();
+      GlobalOpenTelemetry.getPropagators()
+          .getTextMapPropagator()
+          .inject(context, carrier, FlowFileAttributesTextMapSetter.INSTANCE);
+      if (keys.length < carrier.size()) {
+        keys = new String[carrier.size()];
+        values = new byte[carrier.size()][];
+      }
+      fieldCount = 0;
+      for (Map.Entry<String, String> field : carrier.entrySet()) {
+        keys[fieldCount] = field.getKey();
+        values[fieldCount] = field.getValue().getBytes(StandardCharsets.UTF_8);
+        fieldCount++;
+      }
+    }
+  }
+}
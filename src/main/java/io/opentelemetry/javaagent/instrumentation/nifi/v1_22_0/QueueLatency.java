@@ -0,0 +1,107 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.instrumentation.api.util.VirtualField;
+import org.apache.nifi.connectable.Connectable;
+import org.apache.nifi.connectable.Connection;
+import org.apache.nifi.flowfile.FlowFile;
+
+/**
+ * Time FlowFiles spend waiting in connection queues and since their lineage started, taken from
+ * the FlowFile timestamps when a FlowFile is dequeued.
+ * Recorded as histograms per inbound connection, and as attributes of the FlowFile span.
+ */
+public final class QueueLatency {
+  static final AttributeKey<String> CONNECTION_ID = AttributeKey.stringKey("nifi.connection.id");
+  static final AttributeKey<String> CONNECTION_NAME =
+      AttributeKey.stringKey("nifi.connection.name");
+  static final AttributeKey<String> SOURCE_ID = AttributeKey.stringKey("nifi.connection.source.id");
+
+  private static final double MILLIS_PER_SECOND = 1000.0;
+
+  private static final VirtualField<Connection, ConnectionAttributes> attributesField =
+      VirtualField.find(Connection.class, ConnectionAttributes.class);
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final DoubleHistogram queueWait = meter.histogramBuilder("nifi.queue.wait")
+      .setDescription("Time a FlowFile waited in a connection queue before being dequeued")
+      .setUnit("s")
+      .build();
+  private static final DoubleHistogram lineageAge = meter.histogramBuilder("nifi.lineage.age")
+      .setDescription("Time since the lineage of a dequeued FlowFile started")
+      .setUnit("s")
+      .build();
+
+  private QueueLatency() {}
+
+  /**
+   * Records the queue wait and lineage age of a FlowFile dequeued from a connection
+   */
+  public static void recordDequeued(FlowFile flowFile, Connection connection) {
+    if (!ProcessorMetrics.enabled) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Attributes attributes = ConnectionAttributes.get(connection);
+    Long queueDate = flowFile.getLastQueueDate();
+    if (queueDate != null) {
+      queueWait.record(Math.max(now - queueDate, 0) / MILLIS_PER_SECOND, attributes);
+    }
+    lineageAge.record(
+        Math.max(now - flowFile.getLineageStartDate(), 0) / MILLIS_PER_SECOND, attributes);
+  }
+
+  /**
+   * Sets the queue and lineage timings of a FlowFile on the span handling it
+   */
+  public static void setSpanAttributes(Span span, FlowFile flowFile) {
+    if (!span.isRecording()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Long queueDate = flowFile.getLastQueueDate();
+    if (queueDate != null) {
+      span.setAttribute("nifi.flowfile.queue_wait_ms", Math.max(now - queueDate, 0));
+      span.setAttribute("nifi.flowfile.queue_date_index", flowFile.getQueueDateIndex());
+    }
+    span.setAttribute("nifi.flowfile.lineage_age_ms",
+        Math.max(now - flowFile.getLineageStartDate(), 0));
+    span.setAttribute("nifi.flowfile.entry_age_ms", Math.max(now - flowFile.getEntryDate(), 0));
+  }
+
+  /**
+   * metric attributes of a connection, rebuilt when the connection is renamed
+   */
+  static final class ConnectionAttributes {
+    private final String name;
+    private final Attributes attributes;
+
+    private ConnectionAttributes(Connection connection, String name) {
+      this.name = name;
+      Connectable destination = connection.getDestination();
+      Connectable source = connection.getSource();
+      this.attributes = Attributes.builder()
+          .put(CONNECTION_ID, connection.getIdentifier())
+          .put(CONNECTION_NAME, name)
+          .put(SOURCE_ID, source == null ? null : source.getIdentifier())
+          .put(ConnectableProfile.COMPONENT_ID,
+              destination == null ? null : destination.getIdentifier())
+          .build();
+    }
+
+    static Attributes get(Connection connection) {
+      String name = connection.getName();
+      ConnectionAttributes cached = attributesField.get(connection);
+      if (cached == null || !(cached.name == null ? name == null : cached.name.equals(name))) {
+        cached = new ConnectionAttributes(connection, name);
+        attributesField.set(connection, cached);
+      }
+      return cached.attributes;
+    }
+  }
+}
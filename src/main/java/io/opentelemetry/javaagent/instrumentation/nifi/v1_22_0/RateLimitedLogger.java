@@ -0,0 +1,45 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs a recurring diagnostic at most once per interval, with the number of occurrences since
+ */
+public final class RateLimitedLogger {
+  private static final long DEFAULT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final Logger logger;
+  private final Level level;
+  private final String message;
+  private final long intervalNanos;
+  private final AtomicLong occurrences = new AtomicLong();
+  private final AtomicLong nextLogNanos = new AtomicLong(System.nanoTime());
+
+  public RateLimitedLogger(Logger logger, Level level, String message) {
+    this(logger, level, message, DEFAULT_INTERVAL_NANOS);
+  }
+
+  RateLimitedLogger(Logger logger, Level level, String message, long intervalNanos) {
+    this.logger = logger;
+    this.level = level;
+    this.message = message;
+    this.intervalNanos = intervalNanos;
+  }
+
+  public void log() {
+    long count = occurrences.incrementAndGet();
+    long next = nextLogNanos.get();
+    long now = System.nanoTime();
+    if (now - next < 0) {
+      return;
+    }
+    if (nextLogNanos.compareAndSet(next, now + intervalNanos) && logger.isLoggable(level)) {
+      occurrences.set(0);
+      logger.log(level, message + " (" + count + " times in the last "
+          + TimeUnit.NANOSECONDS.toSeconds(intervalNanos) + "s)");
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.SpanContext;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The consumed records a session is writing into bundled FlowFiles (demarcator or record writer),
+ * and the bundles kept open across polls, per topic partition.
+ *
+ * A bundle is linked to the records of the write that created it. The consumer lease appends the
+ * records of later polls to the bundles still open, so they are linked to the records of every
+ * later write of their partition too, with the same cap and overflow counting. The lease does not
+ * tell which bundle of a partition a record goes to, so every open bundle of the partition is.
+ */
+public final class RecordBundles {
+  private final int maxLinks;
+  // only touched by the thread owning the session
+  private final Map<Object, List<FlowFileSpan>> open = new HashMap<>();
+  @Nullable
+  private Object partition;
+  @Nullable
+  private List<SpanContext> records;
+
+  RecordBundles(int maxLinks) {
+    this.maxLinks = maxLinks;
+  }
+
+  /**
+   * Starts a write of records of the partition, linking the bundles of the partition still open
+   */
+  void startWrite(Object partition, List<SpanContext> records) {
+    this.partition = partition;
+    this.records = records;
+    List<FlowFileSpan> bundles = open.get(partition);
+    if (bundles == null) {
+      return;
+    }
+    for (Iterator<FlowFileSpan> iterator = bundles.iterator(); iterator.hasNext(); ) {
+      FlowFileSpan bundle = iterator.next();
+      if (bundle.isEnded()) {
+        iterator.remove();
+        continue;
+      }
+      if (bundle.span.isRecording()) {
+        for (SpanContext record : records) {
+          bundle.links.addOrCount(bundle.span, record);
+        }
+      }
+    }
+  }
+
+  void endWrite() {
+    partition = null;
+    records = null;
+  }
+
+  /**
+   * true while records are written, FlowFiles created meanwhile are bundles
+   */
+  boolean isWriting() {
+    return records != null;
+  }
+
+  /**
+   * @return the links of a bundle created by the write in progress
+   */
+  LinkCollector newBundleLinks() {
+    LinkCollector links = new LinkCollector(maxLinks);
+    for (SpanContext record : records) {
+      links.addOrCount(record);
+    }
+    return links;
+  }
+
+  /**
+   * Keeps the span of a bundle created by the write in progress, for the writes of later polls
+   */
+  void opened(FlowFileSpan bundle) {
+    List<FlowFileSpan> bundles = open.get(partition);
+    if (bundles == null) {
+      bundles = new ArrayList<>();
+      open.put(partition, bundles);
+    }
+    bundles.add(bundle);
+  }
+}
@@ -0,0 +1,45 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transfers of the FlowFiles sharing a batch or session span, counted per relationship. The span
+ * records a nifi.relationship.&lt;name&gt;.count attribute per relationship instead of the
+ * attributes of every FlowFile.
+ */
+final class RelationshipCounts {
+  private static final ConcurrentHashMap<String, AttributeKey<Long>> keys =
+      new ConcurrentHashMap<>();
+
+  // only touched by the thread owning the session
+  private final Map<String, long[]> counts = new HashMap<>(4);
+
+  void transferred(String relationship) {
+    long[] count = counts.get(relationship);
+    if (count == null) {
+      count = new long[1];
+      counts.put(relationship, count);
+    }
+    count[0]++;
+  }
+
+  void addTo(Span span) {
+    for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+      span.setAttribute(keyOf(entry.getKey()), entry.getValue()[0]);
+    }
+  }
+
+  private static AttributeKey<Long> keyOf(String relationship) {
+    AttributeKey<Long> key = keys.get(relationship);
+    if (key == null) {
+      key = AttributeKey.longKey("nifi.relationship." + relationship + ".count");
+      keys.put(relationship, key);
+    }
+    return key;
+  }
+}
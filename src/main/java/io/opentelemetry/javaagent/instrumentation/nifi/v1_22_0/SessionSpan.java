@@ -0,0 +1,78 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Scope;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single span covering an onTrigger, for components configured with session spans.
+ *
+ * Every FlowFile the component gets or creates shares this span, so it is the one propagated
+ * downstream, and the contexts the FlowFiles arrived with are recorded as links. The span is
+ * started with the first FlowFile, timed from the start of the onTrigger, and ended when the
+ * onTrigger returns.
+ */
+public final class SessionSpan {
+  public final Span span;
+  private final Scope scope;
+  private final LinkCollector links = new LinkCollector(ProcessSessionSingletons.batchSpanMaxLinks);
+  // the FlowFiles only share the span, their transfers are counted instead of captured
+  final RelationshipCounts relationships = new RelationshipCounts();
+  private int flowFiles;
+
+  private SessionSpan(Span span, Scope scope) {
+    this.span = span;
+    this.scope = scope;
+  }
+
+  /**
+   * @return the session span of the running onTrigger, started if needed, or null if the
+   *     component is not configured with session spans
+   */
+  public static SessionSpan current() {
+    ActiveConnectableConfig config = ActiveConnectableSaver.get();
+    if (config.profile == null || !config.profile.sessionSpan) {
+      return null;
+    }
+    if (config.sessionSpan == null) {
+      config.sessionSpan = start(config);
+    }
+    return config.sessionSpan;
+  }
+
+  private static SessionSpan start(ActiveConnectableConfig config) {
+    ConnectableProfile profile = config.profile;
+    if (!profile.sampler.shouldSample()) {
+      return new SessionSpan(Span.wrap(FlowFileSampler.unsampledRootContext()), null);
+    }
+    Span span = ProcessSessionSingletons.tracer.spanBuilder(profile.spanName)
+        .setAllAttributes(profile.attributes)
+        .setParent(ProcessSessionSingletons.getDefaultContext())
+        .setStartTimestamp(config.triggerStartEpochNanos, TimeUnit.NANOSECONDS)
+        .startSpan();
+    return new SessionSpan(span, span.makeCurrent());
+  }
+
+  /**
+   * Records a FlowFile joining the session, with the context it arrived with
+   */
+  public void addFlowFile(SpanContext parent) {
+    flowFiles++;
+    links.add(parent);
+  }
+
+  void end() {
+    if (scope != null) {
+      scope.close();
+    }
+    if (span.isRecording()) {
+      links.addTo(span);
+      relationships.addTo(span);
+      span.setAttribute("nifi.session.flowfiles", flowFiles);
+      span.setAttribute("nifi.session.links.truncated", links.isTruncated());
+      AsyncEnrichment.end(span);
+    }
+  }
+}
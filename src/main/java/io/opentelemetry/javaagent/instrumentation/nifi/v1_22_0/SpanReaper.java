@@ -0,0 +1,146 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.javaagent.bootstrap.internal.InstrumentationConfig;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the number and age of open FlowFile spans bounded.
+ *
+ * Spans are normally ended when their session is checkpointed or rolled back. Sessions that are
+ * abandoned, or that hold FlowFiles for very long, are swept periodically: spans older than the
+ * max age are ended from the reaper thread and counted. Their scopes can only be closed by the
+ * thread that opened them, which happens whenever the onTrigger returns.
+ *
+ * Registries are held strongly until their session ends them. A session garbage collected without
+ * being ended has its remaining spans ended by the reaper, so they are still counted as ended.
+ */
+public final class SpanReaper {
+  private static final Logger logger = Logger.getLogger(SpanReaper.class.getName());
+
+  static final long maxTrackedSpans = InstrumentationConfig.get().getLong(
+      "otel.instrumentation.nifi.max-tracked-spans",
+      100_000
+  );
+  static final Duration spanMaxAge = InstrumentationConfig.get().getDuration(
+      "otel.instrumentation.nifi.span-max-age",
+      Duration.ofMinutes(10)
+  );
+
+  private static final AtomicLong openSpans = new AtomicLong();
+  private static final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+  // sessions garbage collected while still registered
+  private static final ReferenceQueue<ProcessSession> collected = new ReferenceQueue<>();
+
+  private static final Meter meter = GlobalOpenTelemetry.getMeter("nifi");
+  private static final LongCounter reapedCounter = meter.counterBuilder("nifi.tracked_spans.reaped")
+      .setDescription("FlowFile spans ended by the reaper because they exceeded the max age")
+      .setUnit("{span}")
+      .build();
+  private static final LongCounter droppedCounter =
+      meter.counterBuilder("nifi.tracked_spans.dropped")
+          .setDescription("FlowFile spans not opened because the max tracked spans was reached")
+          .setUnit("{span}")
+          .build();
+
+  static {
+    meter.upDownCounterBuilder("nifi.tracked_spans.open")
+        .setDescription("FlowFile spans currently open and tracked")
+        .setUnit("{span}")
+        .buildWithCallback(measurement -> measurement.record(openSpans.get()));
+
+    long periodMillis = Math.max(spanMaxAge.toMillis() / 4, 1000);
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "otel-nifi-span-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(
+        SpanReaper::reap, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private SpanReaper() {}
+
+  /**
+   * Sweeps the registry of the session until it is unregistered
+   */
+  static Registration register(ProcessSession session, FlowFileSpanRegistry registry) {
+    Registration registration = new Registration(session, registry);
+    registrations.add(registration);
+    return registration;
+  }
+
+  static void unregister(Registration registration) {
+    registrations.remove(registration);
+  }
+
+  /**
+   * @return false, and counts the span as dropped, if no more spans may be opened
+   */
+  public static boolean tryOpen() {
+    if (openSpans.get() < maxTrackedSpans) {
+      return true;
+    }
+    droppedCounter.add(1);
+    return false;
+  }
+
+  static void opened() {
+    openSpans.incrementAndGet();
+  }
+
+  static void ended() {
+    openSpans.decrementAndGet();
+  }
+
+  private static void reap() {
+    try {
+      long now = System.nanoTime();
+      long deadline = now - spanMaxAge.toNanos();
+      long reaped = 0;
+      Reference<? extends ProcessSession> reference;
+      while ((reference = collected.poll()) != null) {
+        Registration registration = (Registration) reference;
+        // nothing else can end the spans of a session that is gone, nor use its registry
+        if (registrations.remove(registration)) {
+          reaped += registration.registry.reap(now);
+        }
+      }
+      for (Registration registration : registrations) {
+        reaped += registration.registry.reap(deadline);
+      }
+      if (reaped > 0) {
+        reapedCounter.add(reaped);
+        logger.fine("ended " + reaped + " stale FlowFile spans");
+      }
+    } catch (RuntimeException e) {
+      logger.warning("failed reaping stale FlowFile spans: " + e);
+    }
+  }
+
+  /**
+   * The registry of a session, enqueued once the session is garbage collected
+   */
+  static final class Registration extends WeakReference<ProcessSession> {
+    final FlowFileSpanRegistry registry;
+
+    private Registration(ProcessSession session, FlowFileSpanRegistry registry) {
+      super(session, collected);
+      this.registry = registry;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncEnrichmentTest {
+  private static final AttributeKey<String> TARGET =
+      AttributeKey.stringKey("nifi.relationship.target");
+  private static final AttributeKey<String> FILENAME =
+      AttributeKey.stringKey(AttributeCapturePolicy.ATTRIBUTE_PREFIX + "filename");
+
+  private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+  private final Tracer tracer = SdkTracerProvider.builder()
+      .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+      .build()
+      .get("test");
+
+  @Test
+  void ringBufferIsFifoAndBounded() {
+    AsyncEnrichment.RingBuffer buffer = new AsyncEnrichment.RingBuffer(3);
+    Span span = Span.getInvalid();
+    // rounded up to a power of two
+    for (int i = 1; i <= 4; i++) {
+      assertTrue(buffer.offer(span, null, null, "r" + i, 0));
+    }
+    assertFalse(buffer.offer(span, null, null, "r5", 0));
+
+    AsyncEnrichment.RingBuffer.Cell cell = new AsyncEnrichment.RingBuffer.Cell();
+    for (int round = 0; round < 3; round++) {
+      for (int i = 1; i <= 4; i++) {
+        assertTrue(buffer.poll(cell));
+        assertSame(span, cell.span);
+        assertEquals("r" + i, cell.relationship);
+        // the freed slot is reused once the position wraps around
+        assertTrue(buffer.offer(span, null, null, "r" + i, 0));
+      }
+    }
+    assertFalse(buffer.offer(span, null, null, "r5", 0));
+  }
+
+  @Test
+  void pollCopiesTheTask() {
+    AsyncEnrichment.RingBuffer buffer = new AsyncEnrichment.RingBuffer(2);
+    AsyncEnrichment.RingBuffer.Cell cell = new AsyncEnrichment.RingBuffer.Cell();
+    assertFalse(buffer.poll(cell));
+    assertTrue(buffer.offer(Span.getInvalid(), null, null, null, 42));
+    assertTrue(buffer.poll(cell));
+    assertEquals(42, cell.endEpochNanos);
+    assertNull(cell.attributes);
+    assertFalse(buffer.poll(cell));
+  }
+
+  @Test
+  void endOnFullBufferStaysBehindQueuedCaptures() throws InterruptedException {
+    AsyncEnrichment enrichment = new AsyncEnrichment(2, TimeUnit.SECONDS.toNanos(30));
+    Span first = tracer.spanBuilder("first").startSpan();
+    Span second = tracer.spanBuilder("second").startSpan();
+    enrichment.enqueueCapture(first, null, Collections.singletonMap("filename", "a"), "success");
+    enrichment.enqueueCapture(second, null, Collections.singletonMap("filename", "b"), "failure");
+
+    // the worker is not started yet, so the buffer stays full
+    Thread ending = new Thread(() -> enrichment.enqueueEnd(first));
+    ending.start();
+    ending.join(100);
+    assertTrue(ending.isAlive(), "the end should wait for a free slot");
+
+    enrichment.start();
+    ending.join(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(ending.isAlive());
+    enrichment.enqueueEnd(second);
+
+    List<SpanData> spans = awaitSpans(2);
+    SpanData firstData = find(spans, "first");
+    assertEquals("success", firstData.getAttributes().get(TARGET));
+    assertEquals("a", firstData.getAttributes().get(FILENAME));
+    SpanData secondData = find(spans, "second");
+    assertEquals("failure", secondData.getAttributes().get(TARGET));
+    assertEquals("b", secondData.getAttributes().get(FILENAME));
+  }
+
+  @Test
+  void endOnFullBufferIsAppliedInlineOnceTheWaitIsOver() {
+    AsyncEnrichment enrichment = new AsyncEnrichment(2, TimeUnit.MILLISECONDS.toNanos(1));
+    Span first = tracer.spanBuilder("first").startSpan();
+    enrichment.enqueueCapture(first, null, Collections.singletonMap("filename", "a"), "success");
+    enrichment.enqueueCapture(first, null, Collections.singletonMap("filename", "b"), "success");
+
+    // the worker is never started, the end must not wait for it
+    enrichment.enqueueEnd(first);
+
+    List<SpanData> spans = exporter.getFinishedSpanItems();
+    assertEquals(1, spans.size());
+    assertNull(spans.get(0).getAttributes().get(TARGET));
+  }
+
+  private List<SpanData> awaitSpans(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (exporter.getFinishedSpanItems().size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    List<SpanData> spans = exporter.getFinishedSpanItems();
+    assertEquals(count, spans.size());
+    return spans;
+  }
+
+  private static SpanData find(List<SpanData> spans, String name) {
+    for (SpanData span : spans) {
+      if (span.getName().equals(name)) {
+        return span;
+      }
+    }
+    throw new AssertionError("no span named " + name);
+  }
+}
@@ -0,0 +1,73 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CompactTraceContextTest {
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String SPAN_ID = "00f067aa0ba902b7";
+  private static final String TRACEPARENT = "00-" + TRACE_ID + "-" + SPAN_ID + "-01";
+
+  private static final SpanContext SAMPLED = SpanContext.create(
+      TRACE_ID, SPAN_ID, TraceFlags.getSampled(), TraceState.getDefault());
+
+  @Test
+  void roundTripsToTraceparent() {
+    String compact = CompactTraceContext.encode(SAMPLED);
+    assertEquals(34, compact.length());
+    assertEquals(TRACEPARENT, CompactTraceContext.toTraceparent(compact));
+
+    SpanContext unsampled = SpanContext.create(
+        "ffffffffffffffffffffffffffffffff", "0000000000000001", TraceFlags.getDefault(),
+        TraceState.getDefault());
+    assertEquals("00-ffffffffffffffffffffffffffffffff-0000000000000001-00",
+        CompactTraceContext.toTraceparent(CompactTraceContext.encode(unsampled)));
+  }
+
+  @Test
+  void rejectsMalformedValues() {
+    String compact = CompactTraceContext.encode(SAMPLED);
+    assertNull(CompactTraceContext.toTraceparent(""));
+    assertNull(CompactTraceContext.toTraceparent(compact.substring(1)));
+    assertNull(CompactTraceContext.toTraceparent(compact + "AAAA"));
+    // '+' and '/' are not part of the url safe alphabet
+    assertNull(CompactTraceContext.toTraceparent("+" + compact.substring(1)));
+  }
+
+  @Test
+  void rejectsInvalidContexts() {
+    assertNull(CompactTraceContext.toTraceparent(
+        CompactTraceContext.encode(SpanContext.getInvalid())));
+    SpanContext zeroSpanId = SpanContext.create(
+        TRACE_ID, "0000000000000000", TraceFlags.getSampled(), TraceState.getDefault());
+    assertNull(CompactTraceContext.toTraceparent(CompactTraceContext.encode(zeroSpanId)));
+  }
+
+  @Test
+  void getterPrefersAValidCompactContext() {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(FlowFileAttributesTextMapGetter.TRACEPARENT,
+        "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+    attributes.put(CompactTraceContext.ATTRIBUTE, CompactTraceContext.encode(SAMPLED));
+    assertEquals(TRACEPARENT, FlowFileAttributesTextMapGetter.INSTANCE.get(
+        attributes, FlowFileAttributesTextMapGetter.TRACEPARENT));
+
+    attributes.put(CompactTraceContext.ATTRIBUTE,
+        CompactTraceContext.encode(SpanContext.getInvalid()));
+    assertEquals("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01",
+        FlowFileAttributesTextMapGetter.INSTANCE.get(
+            attributes, FlowFileAttributesTextMapGetter.TRACEPARENT));
+
+    attributes.remove(FlowFileAttributesTextMapGetter.TRACEPARENT);
+    assertNull(FlowFileAttributesTextMapGetter.INSTANCE.get(
+        attributes, FlowFileAttributesTextMapGetter.TRACEPARENT));
+  }
+}
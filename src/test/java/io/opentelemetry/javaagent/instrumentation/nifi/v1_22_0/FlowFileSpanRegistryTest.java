@@ -0,0 +1,147 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlowFileSpanRegistryTest {
+  private static final AttributeKey<Boolean> REAPED = AttributeKey.booleanKey("nifi.span.reaped");
+
+  private final FlowFileSpanRegistry registry = new FlowFileSpanRegistry();
+  private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+  private final Tracer tracer = SdkTracerProvider.builder()
+      .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+      .build()
+      .get("test");
+
+  @Test
+  void putGetAndRemoveMatchAMap() {
+    // many removals inside long probe sequences exercise the backward shift and the rehashes
+    Random random = new Random(42);
+    Map<Long, FlowFileSpan> expected = new HashMap<>();
+    for (int i = 0; i < 20_000; i++) {
+      long id = random.nextInt(2_000);
+      if (random.nextInt(3) == 0) {
+        assertSame(expected.remove(id), registry.remove(id));
+      } else {
+        FlowFileSpan entry = entry(id);
+        assertSame(expected.put(id, entry), registry.put(entry));
+      }
+      assertEquals(expected.size(), registry.size());
+    }
+    for (long id = 0; id < 2_000; id++) {
+      assertSame(expected.get(id), registry.get(id));
+    }
+  }
+
+  @Test
+  void collidingIdsSurviveRemovalOfTheirPredecessors() {
+    // ids sharing their home slot in the initial table of 16, fewer than the rehash threshold
+    long[] ids = new long[6];
+    int found = 0;
+    for (long id = 0; found < ids.length; id++) {
+      if ((FlowFileSpanRegistry.hash(id) & 15) == 7) {
+        ids[found++] = id;
+      }
+    }
+    for (long id : ids) {
+      registry.put(entry(id));
+    }
+    registry.remove(ids[0]);
+    registry.remove(ids[3]);
+    for (int i = 0; i < ids.length; i++) {
+      if (i == 0 || i == 3) {
+        assertNull(registry.get(ids[i]));
+      } else {
+        assertEquals(ids[i], registry.get(ids[i]).flowFileId);
+      }
+    }
+    // the freed slots are reused without tombstones
+    registry.put(entry(ids[0]));
+    assertEquals(ids[0], registry.get(ids[0]).flowFileId);
+    assertEquals(5, registry.size());
+  }
+
+  @Test
+  void endAllEndsNewestFirstAndClears() {
+    for (long id = 1; id <= 100; id++) {
+      registry.put(owned(id));
+    }
+    registry.endAll();
+
+    List<String> expected = new ArrayList<>();
+    for (long id = 100; id >= 1; id--) {
+      expected.add(String.valueOf(id));
+    }
+    assertEquals(expected, endedNames());
+    assertTrue(registry.isEmpty());
+    assertNull(registry.get(50));
+  }
+
+  @Test
+  void keepsInsertionOrderAcrossRemovals() {
+    for (long id = 1; id <= 5; id++) {
+      registry.put(owned(id));
+    }
+    registry.remove(3);
+    // tracking a FlowFile again moves it to the end
+    registry.put(owned(1)).end();
+    registry.endAll();
+    assertEquals(Arrays.asList("1", "1", "5", "4", "2"), endedNames());
+  }
+
+  @Test
+  void reapsOwnedSpansStartedBeforeTheDeadline() {
+    Span owned = tracer.spanBuilder("owned").startSpan();
+    registry.put(new FlowFileSpan(1, owned, null, true, null, null));
+    registry.put(new FlowFileSpan(2, owned, null, false, null, null));
+
+    assertEquals(0, registry.reap(System.nanoTime() - 60_000_000_000L));
+    assertEquals(1, registry.reap(System.nanoTime() + 1));
+    // already ended, and still tracked until the session ends it
+    assertEquals(0, registry.reap(System.nanoTime() + 1));
+    assertEquals(2, registry.size());
+
+    List<SpanData> spans = exporter.getFinishedSpanItems();
+    assertEquals(1, spans.size());
+    assertEquals(Boolean.TRUE, spans.get(0).getAttributes().get(REAPED));
+
+    // ending the session does not end the reaped span twice
+    registry.endAll();
+    assertEquals(1, exporter.getFinishedSpanItems().size());
+  }
+
+  private FlowFileSpan owned(long id) {
+    return new FlowFileSpan(id, tracer.spanBuilder(String.valueOf(id)).startSpan(), null, true,
+        null, null);
+  }
+
+  private List<String> endedNames() {
+    List<String> names = new ArrayList<>();
+    for (SpanData span : exporter.getFinishedSpanItems()) {
+      names.add(span.getName());
+    }
+    return names;
+  }
+
+  private static FlowFileSpan entry(long id) {
+    return new FlowFileSpan(id, Span.getInvalid(), null, false, null, null);
+  }
+}
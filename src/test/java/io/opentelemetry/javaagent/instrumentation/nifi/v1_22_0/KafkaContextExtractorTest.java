@@ -0,0 +1,61 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.trace.SpanContext;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KafkaContextExtractorTest {
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String SPAN_ID = "00f067aa0ba902b7";
+
+  @Test
+  void parsesTraceparent() {
+    SpanContext spanContext = parse("00-" + TRACE_ID + "-" + SPAN_ID + "-01");
+    assertEquals(TRACE_ID, spanContext.getTraceId());
+    assertEquals(SPAN_ID, spanContext.getSpanId());
+    assertTrue(spanContext.isSampled());
+    assertTrue(spanContext.isRemote());
+
+    assertFalse(parse("00-" + TRACE_ID + "-" + SPAN_ID + "-00").isSampled());
+  }
+
+  @Test
+  void acceptsFieldsAppendedByLaterVersions() {
+    SpanContext spanContext = parse("cc-" + TRACE_ID + "-" + SPAN_ID + "-01-what-the-future-holds");
+    assertEquals(TRACE_ID, spanContext.getTraceId());
+    assertNull(parse("cc-" + TRACE_ID + "-" + SPAN_ID + "-01what"));
+    // version 00 has exactly four fields
+    assertNull(parse("00-" + TRACE_ID + "-" + SPAN_ID + "-01-extra"));
+  }
+
+  @Test
+  void rejectsMalformedValues() {
+    assertNull(parse(""));
+    assertNull(parse("00-" + TRACE_ID + "-" + SPAN_ID + "-0"));
+    assertNull(parse("ff-" + TRACE_ID + "-" + SPAN_ID + "-01"));
+    assertNull(parse("0g-" + TRACE_ID + "-" + SPAN_ID + "-01"));
+    assertNull(parse("00_" + TRACE_ID + "-" + SPAN_ID + "-01"));
+    assertNull(parse("00-" + TRACE_ID + "_" + SPAN_ID + "-01"));
+    assertNull(parse("00-" + TRACE_ID + "-" + SPAN_ID + "_01"));
+    assertNull(parse("00-" + TRACE_ID + "-" + SPAN_ID + "-0x"));
+    // only lowercase hex is valid
+    assertNull(parse("00-" + TRACE_ID.toUpperCase() + "-" + SPAN_ID + "-01"));
+    assertNull(parse("00-" + TRACE_ID + "-" + SPAN_ID + "-0A"));
+  }
+
+  @Test
+  void rejectsAllZeroIds() {
+    assertNull(parse("00-00000000000000000000000000000000-" + SPAN_ID + "-01"));
+    assertNull(parse("00-" + TRACE_ID + "-0000000000000000-01"));
+  }
+
+  private static SpanContext parse(String traceparent) {
+    return KafkaContextExtractor.parse(traceparent.getBytes(StandardCharsets.ISO_8859_1));
+  }
+}
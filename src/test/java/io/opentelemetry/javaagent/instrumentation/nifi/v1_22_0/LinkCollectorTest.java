@@ -0,0 +1,129 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkCollectorTest {
+  private static final AttributeKey<List<String>> OVERFLOW_TRACE_IDS =
+      AttributeKey.stringArrayKey("nifi.links.overflow.trace_ids");
+  private static final AttributeKey<List<Long>> OVERFLOW_COUNTS =
+      AttributeKey.longArrayKey("nifi.links.overflow.counts");
+
+  private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+  private final Tracer tracer = SdkTracerProvider.builder()
+      .addSpanProcessor(SimpleSpanProcessor.create(exporter))
+      .build()
+      .get("test");
+
+  @Test
+  void collectsDistinctValidContextsUpToTheCap() {
+    LinkCollector links = new LinkCollector(2);
+    assertTrue(links.add(context(1, 1)));
+    assertTrue(links.add(context(1, 1)));
+    assertTrue(links.add(SpanContext.getInvalid()));
+    assertFalse(links.isFull());
+    assertTrue(links.add(context(2, 1)));
+    assertTrue(links.isFull());
+    assertFalse(links.isTruncated());
+
+    // already collected contexts are not dropped once full
+    assertTrue(links.add(context(1, 1)));
+    assertFalse(links.add(context(3, 1)));
+    assertTrue(links.isTruncated());
+
+    assertEquals(Arrays.asList(context(1, 1), context(2, 1)), linked(links.addTo(
+        tracer.spanBuilder("span")).startSpan()));
+  }
+
+  @Test
+  void countsOverflowPerTraceForUpToCapTraces() {
+    LinkCollector links = new LinkCollector(2);
+    links.addOrCount(context(1, 1));
+    links.addOrCount(context(2, 1));
+    links.addOrCount(context(3, 1));
+    links.addOrCount(context(3, 2));
+    links.addOrCount(context(4, 1));
+    // repeated parents beyond the cap count every time
+    links.addOrCount(context(3, 2));
+    // no more traces are tracked than links, but they are still counted as dropped
+    links.addOrCount(context(5, 1));
+    assertEquals(5, links.dropped());
+
+    Span span = links.addTo(tracer.spanBuilder("span")).startSpan();
+    links.addOverflowTo(span);
+    span.end();
+
+    SpanData data = exporter.getFinishedSpanItems().get(0);
+    assertEquals(2, data.getLinks().size());
+    assertEquals(1, data.getEvents().size());
+    EventData event = data.getEvents().get(0);
+    assertEquals("nifi.links.overflow", event.getName());
+    assertEquals(Arrays.asList(traceId(3), traceId(4)),
+        event.getAttributes().get(OVERFLOW_TRACE_IDS));
+    assertEquals(Arrays.asList(3L, 1L), event.getAttributes().get(OVERFLOW_COUNTS));
+  }
+
+  @Test
+  void linksAStartedSpanUnderTheSameCap() {
+    LinkCollector links = new LinkCollector(2);
+    links.addOrCount(context(1, 1));
+    Span span = links.addTo(tracer.spanBuilder("span")).startSpan();
+
+    links.addOrCount(span, context(1, 1));
+    links.addOrCount(span, SpanContext.getInvalid());
+    links.addOrCount(span, context(2, 1));
+    links.addOrCount(span, context(3, 1));
+    assertEquals(1, links.dropped());
+    assertTrue(links.isTruncated());
+
+    assertEquals(Arrays.asList(context(1, 1), context(2, 1)), linked(span));
+  }
+
+  @Test
+  void addsNoEventWithoutOverflow() {
+    LinkCollector links = new LinkCollector(2);
+    links.addOrCount(context(1, 1));
+    Span span = links.addTo(tracer.spanBuilder("span")).startSpan();
+    links.addOverflowTo(span);
+    span.end();
+    assertEquals(0, exporter.getFinishedSpanItems().get(0).getEvents().size());
+  }
+
+  private List<SpanContext> linked(Span span) {
+    span.end();
+    List<SpanData> spans = exporter.getFinishedSpanItems();
+    List<SpanContext> linked = new ArrayList<>();
+    for (LinkData link : spans.get(spans.size() - 1).getLinks()) {
+      linked.add(link.getSpanContext());
+    }
+    return linked;
+  }
+
+  private static SpanContext context(int trace, int span) {
+    return SpanContext.createFromRemoteParent(traceId(trace), String.format("%016x", span),
+        TraceFlags.getSampled(), TraceState.getDefault());
+  }
+
+  private static String traceId(int trace) {
+    return String.format("%032x", trace);
+  }
+}
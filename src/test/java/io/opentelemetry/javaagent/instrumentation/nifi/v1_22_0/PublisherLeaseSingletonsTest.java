@@ -0,0 +1,182 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.javaagent.extension.instrumentation.TypeTransformer;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.implementation.SuperMethodCall;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.nifi.flowfile.FlowFile;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PublisherLeaseSingletonsTest {
+  private static final String TOPIC = "topic";
+  private static final String FIRST =
+      "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+  private static final String SECOND =
+      "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+
+  private static Class<? extends MockProducer> producerType;
+
+  private MockProducer<byte[], byte[]> producer;
+
+  @BeforeAll
+  static void instrumentProducer() {
+    GlobalOpenTelemetry.resetForTest();
+    GlobalOpenTelemetry.set(OpenTelemetry.propagating(
+        ContextPropagators.create(W3CTraceContextPropagator.getInstance())));
+    producerType = instrument(MockProducer.class, new NiFiKafkaProducerInstrumentation());
+  }
+
+  @AfterAll
+  static void resetPropagator() {
+    GlobalOpenTelemetry.resetForTest();
+  }
+
+  @SuppressWarnings("unchecked")
+  @BeforeEach
+  void createProducer() throws ReflectiveOperationException {
+    producer = producerType.getConstructor(boolean.class, Serializer.class, Serializer.class)
+        .newInstance(true, new ByteArraySerializer(), new ByteArraySerializer());
+  }
+
+  @AfterEach
+  void clearSession() {
+    PublisherLeaseSingletons.endPublish();
+    PublisherLeaseSingletons.clearSession();
+  }
+
+  @Test
+  void recordsOfAFlowFileShareTheEncodedContext() {
+    assertTrue(PublisherLeaseSingletons.startPublish(flowFile(1, FIRST)));
+    producer.send(record("a"), null);
+    producer.send(record("b"), null);
+    PublisherLeaseSingletons.endPublish();
+
+    List<ProducerRecord<byte[], byte[]>> history = producer.history();
+    assertEquals(2, history.size());
+    byte[] first = traceparent(history.get(0));
+    assertEquals(FIRST, new String(first, StandardCharsets.UTF_8));
+    assertSame(first, traceparent(history.get(1)));
+  }
+
+  @Test
+  void everyFlowFilePropagatesItsOwnContext() {
+    PublisherLeaseSingletons.startPublish(flowFile(1, FIRST));
+    producer.send(record("a"), null);
+    PublisherLeaseSingletons.endPublish();
+    PublisherLeaseSingletons.startPublish(flowFile(2, SECOND));
+    producer.send(record("b"), null);
+    PublisherLeaseSingletons.endPublish();
+
+    List<ProducerRecord<byte[], byte[]>> history = producer.history();
+    assertEquals(FIRST, new String(traceparent(history.get(0)), StandardCharsets.UTF_8));
+    assertEquals(SECOND, new String(traceparent(history.get(1)), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void replacesAContextTheRecordAlreadyCarries() {
+    ProducerRecord<byte[], byte[]> record = record("a");
+    record.headers().add(FlowFileAttributesTextMapGetter.TRACEPARENT,
+        SECOND.getBytes(StandardCharsets.UTF_8));
+    PublisherLeaseSingletons.startPublish(flowFile(1, FIRST));
+    producer.send(record, null);
+
+    int count = 0;
+    for (Header header : record.headers().headers(FlowFileAttributesTextMapGetter.TRACEPARENT)) {
+      count++;
+    }
+    assertEquals(1, count);
+    assertEquals(FIRST, new String(traceparent(record), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void nestedPublishKeepsTheOuterFlowFile() {
+    assertTrue(PublisherLeaseSingletons.startPublish(flowFile(1, FIRST)));
+    assertFalse(PublisherLeaseSingletons.startPublish(flowFile(2, SECOND)));
+    producer.send(record("a"), null);
+    assertEquals(FIRST,
+        new String(traceparent(producer.history().get(0)), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void recordsSentOutsideOfAPublishAreUntouched() {
+    producer.send(record("a"), null);
+    assertNull(producer.history().get(0).headers()
+        .lastHeader(FlowFileAttributesTextMapGetter.TRACEPARENT));
+  }
+
+  /**
+   * Subclasses the given type and weaves the advice the instrumentation registers into the
+   * overridden methods, the way the agent would weave it into the type itself
+   */
+  private static <T> Class<? extends T> instrument(
+      Class<T> type, NiFiKafkaProducerInstrumentation instrumentation) {
+    AtomicReference<DynamicType.Builder<T>> builder =
+        new AtomicReference<>(new ByteBuddy().subclass(type));
+    instrumentation.transform(new TypeTransformer() {
+      @Override
+      public void applyAdviceToMethod(
+          ElementMatcher<? super MethodDescription> matcher, String adviceClassName) {
+        try {
+          builder.set(builder.get()
+              .method(matcher)
+              .intercept(SuperMethodCall.INSTANCE)
+              .visit(Advice.to(Class.forName(adviceClassName)).on(matcher)));
+        } catch (ClassNotFoundException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      @Override
+      public void applyTransformer(AgentBuilder.Transformer transformer) {
+        throw new UnsupportedOperationException();
+      }
+    });
+    return builder.get()
+        .make()
+        .load(PublisherLeaseSingletonsTest.class.getClassLoader(),
+            ClassLoadingStrategy.Default.WRAPPER)
+        .getLoaded();
+  }
+
+  private static ProducerRecord<byte[], byte[]> record(String value) {
+    return new ProducerRecord<>(TOPIC, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] traceparent(ProducerRecord<byte[], byte[]> record) {
+    return record.headers().lastHeader(FlowFileAttributesTextMapGetter.TRACEPARENT).value();
+  }
+
+  private static FlowFile flowFile(long id, String traceparent) {
+    return new ImmutableFlowFile(id, System.currentTimeMillis(),
+        Collections.singletonMap(FlowFileAttributesTextMapGetter.TRACEPARENT, traceparent));
+  }
+}
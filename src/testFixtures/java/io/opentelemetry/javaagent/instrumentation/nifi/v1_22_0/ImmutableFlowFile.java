@@ -0,0 +1,77 @@
+package io.opentelemetry.javaagent.instrumentation.nifi.v1_22_0;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable FlowFile record shared by the benchmarks and the tests, mirroring how the framework
+ * replaces the record on every attribute change
+ */
+final class ImmutableFlowFile implements FlowFile {
+  private final long id;
+  private final long entryDate;
+  private final Map<String, String> attributes;
+
+  ImmutableFlowFile(long id, long entryDate, Map<String, String> attributes) {
+    this.id = id;
+    this.entryDate = entryDate;
+    this.attributes = Collections.unmodifiableMap(attributes);
+  }
+
+  @Override
+  public long getId() {
+    return id;
+  }
+
+  @Override
+  public long getEntryDate() {
+    return entryDate;
+  }
+
+  @Override
+  public long getLineageStartDate() {
+    return entryDate;
+  }
+
+  @Override
+  public long getLineageStartIndex() {
+    return id;
+  }
+
+  @Override
+  public Long getLastQueueDate() {
+    return entryDate;
+  }
+
+  @Override
+  public long getQueueDateIndex() {
+    return id;
+  }
+
+  @Override
+  public boolean isPenalized() {
+    return false;
+  }
+
+  @Override
+  public String getAttribute(String key) {
+    return attributes.get(key);
+  }
+
+  @Override
+  public long getSize() {
+    return 0;
+  }
+
+  @Override
+  public Map<String, String> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public int compareTo(FlowFile other) {
+    return Long.compare(id, other.getId());
+  }
+}